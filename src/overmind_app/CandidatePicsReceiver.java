@@ -1,10 +1,14 @@
 package overmind_app;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.concurrent.ExecutorService;
@@ -69,7 +73,13 @@ public class CandidatePicsReceiver extends Thread {
 			while (streamIsUp) { // Keep listening for new pics until the terminal signals that is sending the last one
 				try {
 					com.example.muondetector.Candidate candidate = (com.example.muondetector.Candidate) socketInputStream.readObject();
-					cachedThreadPoolExecutor.execute(new ConvertGrayscale(candidate.bmpPixels, candidate.particleTag, "")); // Create a thread that transform the pics 
+					
+					// The pics sent by the MuonDetector app are square. If one isn't, it's treated as a single row.
+					int width = (int) Math.sqrt(candidate.bmpPixels.length);
+					if (width * width != candidate.bmpPixels.length)
+						width = candidate.bmpPixels.length;
+					
+					cachedThreadPoolExecutor.execute(new ConvertGrayscale(candidate.bmpPixels, width, candidate.particleTag, "")); // Create a thread that transform the pics 
 																														// into a grayscale luminance map
 				} catch (EOFException e) { // If terminal has closed the stream, exit the runnable 
 					streamIsUp = false;
@@ -81,46 +91,138 @@ public class CandidatePicsReceiver extends Thread {
 	}
 	
 	/**
-	 * Create grayscale luminance maps from the pics sent by the smartphones. Then save the map and the
-	 * accompanying tag in the local storage.
+	 * Create grayscale luminance maps from the pics sent by the smartphones. Then crop the region
+	 * containing the trace, so that the map has always MAX_PIC_PIXELS pixels, and save it with 
+	 * the accompanying tag in the local storage.
 	 */
 	
 	static class ConvertGrayscale implements Runnable {
 		private int[] pixels;
+		private int width; // Width of the pic in pixels.
 		private float[] grayscalePixels;
 		private int tag;
 		private String fileName;
 		
-		public ConvertGrayscale (int[] pixels, int tag, String fileName) {
+		public ConvertGrayscale (int[] pixels, int width, int tag, String fileName) {
 			this.pixels = pixels;
+			this.width = width;
 			this.tag = tag;
 			this.fileName = fileName;
 			grayscalePixels = new float[pixels.length];
 		}
 
-		@Override
-		public void run() {
-			// Calculate the luminance map
+		/**
+		 * Convert RGB pixels into luminance without branches: the channel to use is selected
+		 * arithmetically and its value is looked up in the LUMINANCE_TABLE of GrayscaleCandidate,
+		 * so that each luminance maps back exactly to its code. 
+		 */
+		
+		static void convertLuminance(int[] pixels, float[] grayscalePixels) {
 			for (int i = 0; i < pixels.length; i++) {
-				int red = (pixels[i] >> 16) & 0xff;
-				int green = (pixels[i] >> 8) & 0xff;
-				int blue = (pixels[i]) & 0xff;			
+				int pixel = pixels[i];
+				int green = (pixel >> 8) & 0xff;
+				int blue = pixel & 0xff;
 				
-				if (green == 0) 
-					grayscalePixels[i] = (float)red / 255 * 0.44f;
-				else if (blue == 0)
-					grayscalePixels[i] = 0.44f + (float)green / 255 * 0.44f;
-				else
-					grayscalePixels[i] = 0.88f + (float)blue / 255 * 0.12f;	
+				// 1 if the channel is not 0, 0 otherwise.
+				int greenIsLit = (green | -green) >>> 31;
+				int blueIsLit = (blue | -blue) >>> 31;
+				
+				// 0 selects red, 1 green and 2 blue, whose shifts are 16, 8 and 0. 
+				int channel = greenIsLit + (greenIsLit & blueIsLit);
+				int value = (pixel >> (16 - 8 * channel)) & 0xff;
 				
-			}		
+				grayscalePixels[i] = GrayscaleCandidate.LUMINANCE_TABLE[channel << 8 | value];
+			}
+		}
+		
+		/**
+		 * Get the RGB pixels of a picture, reading them directly from the raster when its layout is
+		 * one of the common ones, without the per pixel color conversion of getRGB.
+		 * @return The pixels in the format of getRGB, apart from the alpha which may differ.
+		 */
+		
+		static int[] pixelsOf(BufferedImage bitmap) {
+			int width = bitmap.getWidth(), height = bitmap.getHeight();
+			WritableRaster raster = bitmap.getRaster();
+			DataBuffer dataBuffer = raster.getDataBuffer();
+			boolean rasterIsPlain = raster.getParent() == null && dataBuffer.getNumBanks() == 1 && dataBuffer.getOffset() == 0 &&
+					raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+			
+			if (rasterIsPlain) {
+				switch (bitmap.getType()) {
+					case BufferedImage.TYPE_INT_RGB:
+					case BufferedImage.TYPE_INT_ARGB: {
+						// The backing array already holds the pixels as getRGB returns them.
+						int[] data = ((DataBufferInt) dataBuffer).getData();
+						if (data.length == width * height &&
+								((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride() == width)
+							return data;
+						break;
+					}
+					case BufferedImage.TYPE_3BYTE_BGR:
+					case BufferedImage.TYPE_4BYTE_ABGR: {
+						byte[] data = ((DataBufferByte) dataBuffer).getData();
+						int pixelStride = bitmap.getType() == BufferedImage.TYPE_3BYTE_BGR ? 3 : 4;
+						if (data.length != width * height * pixelStride)
+							break;
+						
+						// The last three bytes of each pixel are blue, green and red.
+						int[] pixels = new int[width * height];
+						for (int i = 0, byteIndex = pixelStride - 3; i < pixels.length; i++, byteIndex += pixelStride) 
+							pixels[i] = (data[byteIndex + 2] & 0xff) << 16 | (data[byteIndex + 1] & 0xff) << 8 | (data[byteIndex] & 0xff);
+						return pixels;
+					}
+				}
+			}
+			
+			return bitmap.getRGB(0, 0, width, height, null, 0, width);
+		}
+
+		@Override
+		public void run() {
+			// Skip the pic if the same one has already been received or imported.
+			long contentHash = ContentIndex.hashOf(pixels, width);
+			ContentIndex contentIndex = ContentIndex.shared();
+			if (contentIndex != null && !contentIndex.claim(contentHash)) {
+				System.out.println("MuonTeacher: duplicate pic discarded");
+				return;
+			}
+			
+			boolean saved = save(convert());
+			
+			if (contentIndex != null) {
+				if (saved)
+					contentIndex.commit(contentHash);
+				else
+					contentIndex.release(contentHash);
+			}
+		}
+		
+		/**
+		 * Calculate the luminance map and crop the trace.
+		 */
+		
+		GrayscaleCandidate convert() {
+			// Calculate the luminance map
+			convertLuminance(pixels, grayscalePixels);
 			
-			// Save the map and the tag
+			// Keep only the trace, resampled into the fixed grid.
+			float[] regionOfInterest = RegionOfInterest.cropAndResample(grayscalePixels, width, pixels.length / width);
+			
+			return new GrayscaleCandidate(regionOfInterest, tag);
+		}
+		
+		/**
+		 * Append the map and the tag to the dataset of the folder of the tag.
+		 * @return false if an error occurred.
+		 */
+		
+		static boolean save(GrayscaleCandidate grayscaleCandidate) {
 			String absolutePath = new File("").getAbsolutePath();
 			
 			/* Save a different directory path in the string depending on the particle tag */
 			String tagDirectoryPath = ""; 
-			switch (tag) {
+			switch (grayscaleCandidate.lable) {
 				case MuonTeacherConst.UNDETERMINED:
 					tagDirectoryPath = "/resources/pics/untagged";
 					break;
@@ -139,19 +241,7 @@ public class CandidatePicsReceiver extends Thread {
 			String picsPath = absolutePath.concat(tagDirectoryPath);
 			File picsDirectory = new File(picsPath);
 			
-			// Write in a new file the object containing the grayscale map of the luminance and the particle tag
-			try {
-				File picFile = File.createTempFile("" + pixels.hashCode(), ".gcnd", picsDirectory); // Create a new file
-				FileOutputStream fileOutputStream = new FileOutputStream(picFile); // Get a stream to write into the file
-				ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream); // Get a stream to write an object
-				objectOutputStream.writeObject(new GrayscaleCandidate(grayscalePixels, tag)); // Write the object
-				
-				// Close the streams
-				fileOutputStream.close();
-				objectOutputStream.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}							
+			return DatasetStore.of(picsDirectory).append(grayscaleCandidate);
 		}		
 	}
 }
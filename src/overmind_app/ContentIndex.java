@@ -0,0 +1,243 @@
+package overmind_app;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+
+/**
+ * Index of the content of the pics which have been converted, used to reject the pics which are
+ * received or imported more than once. Each pic is identified by a 64 bits FNV-1a hash of its
+ * pixels, and the hashes are kept in an open addressing table with linear probing, mapped in
+ * memory from a file. The file has a header:
+ *
+ * magic (int), version (int), number of slots (int), number of hashes (int)
+ *
+ * followed by the slots, each holding a hash (long) or 0 if it's empty. The values are little endian.
+ *
+ * A pic is claimed before being converted and its hash is written in the table only once the
+ * map has been saved, so that a pic whose conversion is interrupted can be converted again.
+ * @author rodolfo
+ *
+ */
+
+public class ContentIndex {
+
+	private static final int MAGIC = 0x47434958; // "GCIX"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static ContentIndex sharedIndex = null;
+
+	private final File indexFile;
+	private MappedByteBuffer table;
+	private int numOfSlots;
+	private int numOfHashes;
+
+	// Hashes of the pics which are being converted.
+	private final HashSet<Long> claimedHashes = new HashSet<>();
+
+	private ContentIndex(File indexFile) throws IOException {
+		this.indexFile = indexFile;
+
+		if (indexFile.length() >= HEADER_BYTES) {
+			table = map(indexFile);
+			if (table.getInt(0) == MAGIC && table.getInt(4) == VERSION && Integer.bitCount(table.getInt(8)) == 1 &&
+					indexFile.length() == HEADER_BYTES + (long) table.getInt(8) * MuonTeacherConst.SIZE_OF_LONG) {
+				numOfSlots = table.getInt(8);
+				numOfHashes = table.getInt(12);
+				return;
+			}
+			System.out.println("ERROR: " + indexFile.getName() + " is not a valid index, a new one is created");
+		}
+
+		table = create(indexFile, MuonTeacherConst.CONTENT_INDEX_SLOTS);
+		numOfSlots = MuonTeacherConst.CONTENT_INDEX_SLOTS;
+		numOfHashes = 0;
+	}
+
+	/**
+	 * @return The index of the pics saved in resources/pics, or null if it can't be opened.
+	 */
+
+	static synchronized ContentIndex shared() {
+		if (sharedIndex == null) {
+			try {
+				sharedIndex = new ContentIndex(new File(new File("").getAbsolutePath().concat("/resources/pics/content_index")));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return sharedIndex;
+	}
+
+	/**
+	 * @return The hash of the content of a pic. Only the color channels are hashed, since the
+	 * luminance doesn't depend on the alpha channel. The hash is never 0.
+	 */
+
+	static long hashOf(int[] pixels, int width) {
+		long hash = FNV_OFFSET_BASIS;
+		hash = (hash ^ (width & 0xff)) * FNV_PRIME;
+		hash = (hash ^ (width >>> 8 & 0xff)) * FNV_PRIME;
+
+		for (int pixel : pixels) {
+			hash = (hash ^ (pixel & 0xff)) * FNV_PRIME;
+			hash = (hash ^ (pixel >>> 8 & 0xff)) * FNV_PRIME;
+			hash = (hash ^ (pixel >>> 16 & 0xff)) * FNV_PRIME;
+		}
+
+		return hash != 0 ? hash : 1;
+	}
+
+	/**
+	 * Claim a pic before converting it. Once the pic has been saved the claim must be committed,
+	 * otherwise it must be released.
+	 * @return false if the pic has already been saved or is being converted.
+	 */
+
+	synchronized boolean claim(long hash) {
+		if (contains(hash))
+			return false;
+		return claimedHashes.add(hash);
+	}
+
+	/**
+	 * Write in the table the hash of a pic which has been saved. The table is written to the disk
+	 * before returning, so that the pic can be deleted or acknowledged: after a crash the index
+	 * never misses a pic whose source is gone.
+	 */
+
+	synchronized void commit(long hash) {
+		claimedHashes.remove(hash);
+		if (contains(hash))
+			return;
+
+		// Keep at least half of the slots empty, so that the probes stay short.
+		if ((numOfHashes + 1) * 2 > numOfSlots) {
+			try {
+				grow();
+			} catch (IOException e) {
+				// The old table is kept: it gets fuller, but the hash must be written as long as a slot is empty.
+				e.printStackTrace();
+				if (numOfHashes + 1 == numOfSlots)
+					return;
+			}
+		}
+
+		insert(hash);
+
+		// Only the pages which have been changed are written.
+		table.force();
+	}
+
+	/**
+	 * Release the claim of a pic which couldn't be saved.
+	 */
+
+	synchronized void release(long hash) {
+		claimedHashes.remove(hash);
+	}
+
+	/**
+	 * Write the table to the disk.
+	 */
+
+	synchronized void force() {
+		table.force();
+	}
+
+	static synchronized void closeShared() {
+		if (sharedIndex != null)
+			sharedIndex.force();
+	}
+
+	private boolean contains(long hash) {
+		for (int slot = slotOf(hash); ; slot = (slot + 1) & (numOfSlots - 1)) {
+			long slotHash = table.getLong(HEADER_BYTES + slot * MuonTeacherConst.SIZE_OF_LONG);
+			if (slotHash == hash)
+				return true;
+			if (slotHash == 0)
+				return false;
+		}
+	}
+
+	private void insert(long hash) {
+		putHash(table, numOfSlots, hash);
+		numOfHashes++;
+		table.putInt(12, numOfHashes);
+	}
+
+	private int slotOf(long hash) {
+		return slotOf(hash, numOfSlots);
+	}
+
+	private static int slotOf(long hash, int numOfSlots) {
+		// The low bits of FNV-1a are well mixed, hence they can be used directly.
+		return (int) hash & (numOfSlots - 1);
+	}
+
+	private static void putHash(MappedByteBuffer table, int numOfSlots, long hash) {
+		int slot = slotOf(hash, numOfSlots);
+		while (table.getLong(HEADER_BYTES + slot * MuonTeacherConst.SIZE_OF_LONG) != 0)
+			slot = (slot + 1) & (numOfSlots - 1);
+
+		table.putLong(HEADER_BYTES + slot * MuonTeacherConst.SIZE_OF_LONG, hash);
+	}
+
+	/**
+	 * Move the hashes into a table with twice the slots, which replaces the current file. The new
+	 * table is used only once it has replaced the file, otherwise the current one is kept.
+	 */
+
+	private void grow() throws IOException {
+		int newNumOfSlots = numOfSlots * 2;
+
+		File newIndexFile = new File(indexFile.getPath() + ".new");
+		MappedByteBuffer newTable = create(newIndexFile, newNumOfSlots);
+		for (int slot = 0; slot < numOfSlots; slot++) {
+			long hash = table.getLong(HEADER_BYTES + slot * MuonTeacherConst.SIZE_OF_LONG);
+			if (hash != 0)
+				putHash(newTable, newNumOfSlots, hash);
+		}
+		newTable.putInt(12, numOfHashes);
+		newTable.force();
+
+		if (!newIndexFile.renameTo(indexFile)) {
+			newIndexFile.delete();
+			throw new IOException("could not replace " + indexFile.getName());
+		}
+
+		table = newTable;
+		numOfSlots = newNumOfSlots;
+	}
+
+	/**
+	 * @return An empty table with the given number of slots, mapped from a new file.
+	 */
+
+	private static MappedByteBuffer create(File file, int slots) throws IOException {
+		file.delete();
+
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			randomAccessFile.setLength(HEADER_BYTES + (long) slots * MuonTeacherConst.SIZE_OF_LONG);
+		}
+		MappedByteBuffer newTable = map(file);
+		newTable.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, slots).putInt(12, 0);
+		return newTable;
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			FileChannel channel = randomAccessFile.getChannel();
+			MappedByteBuffer mappedTable = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+			mappedTable.order(ByteOrder.LITTLE_ENDIAN);
+			return mappedTable;
+		}
+	}
+}
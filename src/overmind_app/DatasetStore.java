@@ -0,0 +1,515 @@
+package overmind_app;
+import java.awt.Color;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collection of luminance maps stored in a directory. Rather than one file per map, the maps are
+ * appended as fixed-size records to a few segment files, which are read back by mapping them in
+ * memory. Each segment starts with a header:
+ *
+ * magic (int), version (int), number of pixels of each map (int), number of bytes of each record (int)
+ *
+ * followed by the records, each made of the tag (int) and the code of the luminance of all the
+ * pixels (short). All the values are little endian. A record which was only partially written
+ * is ignored. The segments of version 1, which stored the luminance as floats, and of version 2,
+ * which stored it quantized in 255 levels (unsigned byte), can still be read, but the maps are
+ * only appended to segments of the current version.
+ *
+ * Segments are self-contained, hence they can be moved from a directory to another, for example
+ * from tagged/track to training_set. They are named segment-N.gcds and read in the order of their
+ * sequence number N, which is kept when the directory is copied, and the maps are appended to the
+ * segment with the highest number. The segments named by the previous versions come first. The
+ * .gcnd files found in the directory are moved into the segments the first time the directory
+ * is loaded.
+ * @author rodolfo
+ *
+ */
+
+public class DatasetStore {
+
+	private static final int MAGIC = 0x47434E44; // "GCND"
+	private static final int VERSION = 3;
+	private static final int LEVEL_VERSION = 2; // Segments written while the luminance was quantized in levels.
+	private static final int FLOAT_VERSION = 1; // Segments written before the luminance was quantized.
+	private static final int NUM_OF_LEVELS = 255;
+	private static final int HEADER_BYTES = 16;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_EXTENSION = ".gcds";
+
+	// One store per directory, so that the appends of different threads are serialized.
+	private static final ConcurrentHashMap<String, DatasetStore> stores = new ConcurrentHashMap<>();
+
+	// If true the datasets are loaded whole in memory before being presented. Set with -Dovermind.preloadDatasets=true
+	private static final boolean preloadDatasets = Boolean.getBoolean("overmind.preloadDatasets");
+
+	private final File directory;
+
+	// Held while the .gcnd files are moved into the segments, so that two threads don't move the same file.
+	private final Object migrationLock = new Object();
+	private final int numOfPixels = MuonTeacherConst.MAX_PIC_PIXELS;
+	private final int recordBytes = MuonTeacherConst.SIZE_OF_INT + numOfPixels * MuonTeacherConst.SIZE_OF_SHORT;
+	private final int levelRecordBytes = MuonTeacherConst.SIZE_OF_INT + numOfPixels * MuonTeacherConst.SIZE_OF_BYTE;
+	private final int floatRecordBytes = MuonTeacherConst.SIZE_OF_INT + numOfPixels * MuonTeacherConst.SIZE_OF_FLOAT;
+
+	/* Segment to which the maps are appended. Opened on the first append */
+
+	private FileChannel segmentChannel = null;
+	private int segmentRecords = 0;
+	private final ByteBuffer recordBuffer = ByteBuffer.allocateDirect(recordBytes).order(ByteOrder.LITTLE_ENDIAN);
+
+	private DatasetStore(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @return The store of the given directory.
+	 */
+
+	static DatasetStore of(File directory) {
+		String path = directory.getAbsolutePath();
+		DatasetStore store = stores.get(path);
+		if (store == null) {
+			stores.putIfAbsent(path, new DatasetStore(directory));
+			store = stores.get(path);
+		}
+		return store;
+	}
+
+	/**
+	 * Append a map at the end of the current segment.
+	 * @return false if the map couldn't be written.
+	 */
+
+	synchronized boolean append(GrayscaleCandidate grayscaleCandidate) {
+		if (grayscaleCandidate.numOfPixels != numOfPixels) {
+			System.out.println("ERROR: map of " + grayscaleCandidate.numOfPixels + " pixels can't be stored in " + directory.getName());
+			return false;
+		}
+
+		recordBuffer.clear();
+		recordBuffer.putInt(grayscaleCandidate.lable);
+		for (int pixel = 0; pixel < numOfPixels; pixel++)
+			recordBuffer.putShort(MuonTeacherConst.SIZE_OF_INT + pixel * MuonTeacherConst.SIZE_OF_SHORT, (short) 0);
+		for (int litIndex = 0; litIndex < grayscaleCandidate.litPixels.length; litIndex++)
+			recordBuffer.putShort(MuonTeacherConst.SIZE_OF_INT + grayscaleCandidate.litPixels[litIndex] * MuonTeacherConst.SIZE_OF_SHORT,
+					grayscaleCandidate.litCodes[litIndex]);
+		recordBuffer.clear();
+
+		try {
+			if (segmentChannel == null || segmentRecords == MuonTeacherConst.SEGMENT_RECORDS)
+				openSegment();
+
+			while (recordBuffer.hasRemaining())
+				segmentChannel.write(recordBuffer);
+			segmentRecords++;
+		} catch (IOException e) {
+			e.printStackTrace();
+			closeSegment();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * A segment mapped in memory. Its records are only read with absolute gets or through
+	 * duplicates, so it can be shared by several threads.
+	 */
+
+	static class Segment {
+		final MappedByteBuffer records;
+		final int version;
+		final int recordBytes;
+		final int numOfRecords;
+
+		Segment(MappedByteBuffer records, int version, int recordBytes) {
+			this.records = records;
+			this.version = version;
+			this.recordBytes = recordBytes;
+			this.numOfRecords = (records.limit() - HEADER_BYTES) / recordBytes;
+		}
+
+		int lableOf(int record) {
+			return records.getInt(HEADER_BYTES + record * recordBytes);
+		}
+	}
+
+	/**
+	 * @return All the maps of the directory, in the order of the dataset. The records are read in
+	 * parallel by the common fork-join pool. The records with an unknown tag are skipped.
+	 */
+
+	ArrayList<GrayscaleCandidate> load() {
+		Segment[] segments = mapSegments();
+
+		// Index of the first record of each segment, as if all the records were in a single array.
+		int[] firstRecords = new int[segments.length + 1];
+		for (int segmentIndex = 0; segmentIndex < segments.length; segmentIndex++)
+			firstRecords[segmentIndex + 1] = firstRecords[segmentIndex] + segments[segmentIndex].numOfRecords;
+
+		LoadTask loadTask = new LoadTask(segments, firstRecords, 0, firstRecords[segments.length]);
+		ArrayList<GrayscaleCandidate> candidates = ForkJoinPool.commonPool().invoke(loadTask);
+
+		if (candidates.size() != firstRecords[segments.length])
+			System.out.println("ERROR: " + (firstRecords[segments.length] - candidates.size()) + " corrupt records skipped in " + directory.getName());
+
+		return candidates;
+	}
+
+	/**
+	 * Reads a range of records, splitting it in halves until it's shorter than LOAD_TASK_RECORDS.
+	 * Each task fills its own list, which is then appended to that of the task that forked it,
+	 * so that no list is shared by different threads and the order of the dataset is kept.
+	 */
+
+	private class LoadTask extends RecursiveTask<ArrayList<GrayscaleCandidate>> {
+		private static final long serialVersionUID = 1L;
+		private final Segment[] segments;
+		private final int[] firstRecords;
+		private final int from, to;
+
+		LoadTask(Segment[] segments, int[] firstRecords, int from, int to) {
+			this.segments = segments;
+			this.firstRecords = firstRecords;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected ArrayList<GrayscaleCandidate> compute() {
+			if (to - from > MuonTeacherConst.LOAD_TASK_RECORDS) {
+				int middle = (from + to) >>> 1;
+				LoadTask secondHalf = new LoadTask(segments, firstRecords, middle, to);
+				secondHalf.fork();
+				ArrayList<GrayscaleCandidate> candidates = new LoadTask(segments, firstRecords, from, middle).compute();
+				candidates.addAll(secondHalf.join());
+				return candidates;
+			}
+
+			ArrayList<GrayscaleCandidate> candidates = new ArrayList<>(to - from);
+			int segmentIndex = 0;
+			while (firstRecords[segmentIndex + 1] <= from)
+				segmentIndex++;
+
+			for (int index = from; index < to; index++) {
+				while (firstRecords[segmentIndex + 1] <= index)
+					segmentIndex++;
+
+				GrayscaleCandidate candidate = read(segments[segmentIndex], index - firstRecords[segmentIndex]);
+				if (isValidLable(candidate.lable))
+					candidates.add(candidate);
+			}
+			return candidates;
+		}
+	}
+
+	private static boolean isValidLable(int lable) {
+		return lable == MuonTeacherConst.UNDETERMINED || lable == MuonTeacherConst.TRACK ||
+				lable == MuonTeacherConst.SPOT || lable == MuonTeacherConst.NOISE;
+	}
+
+	/**
+	 * Map in memory the valid segments of the directory, after moving into them the .gcnd files.
+	 */
+
+	Segment[] mapSegments() {
+		migrateLegacyFiles();
+
+		ArrayList<Segment> mappedSegments = new ArrayList<>();
+		for (File segment : segments()) {
+			try (RandomAccessFile segmentFile = new RandomAccessFile(segment, "r")) {
+				FileChannel channel = segmentFile.getChannel();
+				MappedByteBuffer mappedSegment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				mappedSegment.order(ByteOrder.LITTLE_ENDIAN);
+
+				int version = versionOf(mappedSegment, segment);
+				if (version == VERSION)
+					mappedSegments.add(new Segment(mappedSegment, version, recordBytes));
+				else if (version == LEVEL_VERSION)
+					mappedSegments.add(new Segment(mappedSegment, version, levelRecordBytes));
+				else if (version == FLOAT_VERSION)
+					mappedSegments.add(new Segment(mappedSegment, version, floatRecordBytes));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		return mappedSegments.toArray(new Segment[mappedSegments.size()]);
+	}
+
+	/**
+	 * @return The map stored in the given record of the segment.
+	 */
+
+	GrayscaleCandidate read(Segment segment, int record) {
+		int position = HEADER_BYTES + record * segment.recordBytes;
+		int lable = segment.records.getInt(position);
+
+		ByteBuffer luminance = segment.records.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		luminance.position(position + MuonTeacherConst.SIZE_OF_INT);
+
+		if (segment.version == FLOAT_VERSION) {
+			float[] grayscalePixels = new float[numOfPixels];
+			luminance.asFloatBuffer().get(grayscalePixels);
+			return new GrayscaleCandidate(grayscalePixels, lable);
+		}
+
+		short[] codes = new short[numOfPixels];
+		if (segment.version == LEVEL_VERSION) {
+			// The level q stands for the luminance q / 255, which is mapped to the closest code.
+			for (int pixel = 0; pixel < numOfPixels; pixel++)
+				codes[pixel] = (short) GrayscaleCandidate.codeOf((float) (luminance.get() & 0xff) / NUM_OF_LEVELS);
+		} else {
+			luminance.asShortBuffer().get(codes);
+		}
+		return new GrayscaleCandidate(codes, lable);
+	}
+
+	/**
+	 * @return A stream of the maps of the directory, read in the background a few at a time.
+	 * If interleaveClasses is true the tracks and the spots alternate. If the datasets are
+	 * preloaded, all the maps are read in parallel before the stream is returned.
+	 */
+
+	DatasetStream stream(boolean interleaveClasses) {
+		if (preloadDatasets)
+			return new DatasetStream(load(), interleaveClasses);
+		return new DatasetStream(this, interleaveClasses);
+	}
+
+	/**
+	 * @return The version of the segment, or 0 if its header is not valid.
+	 */
+
+	private int versionOf(ByteBuffer segment, File segmentFile) {
+		if (segment.limit() >= HEADER_BYTES && segment.getInt(0) == MAGIC && segment.getInt(8) == numOfPixels) {
+			int version = segment.getInt(4);
+			if (version == VERSION && segment.getInt(12) == recordBytes ||
+					version == LEVEL_VERSION && segment.getInt(12) == levelRecordBytes ||
+					version == FLOAT_VERSION && segment.getInt(12) == floatRecordBytes)
+				return version;
+		}
+
+		System.out.println("ERROR: " + segmentFile.getName() + " is not a valid segment");
+		return 0;
+	}
+
+	/**
+	 * @return The segments of the directory in the order of their sequence numbers, the last one
+	 * being the one to which the maps are appended.
+	 */
+
+	private File[] segments() {
+		File[] segments = directory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SEGMENT_EXTENSION);
+			}
+		});
+		if (segments == null)
+			return new File[0];
+
+		Arrays.sort(segments, new Comparator<File>() {
+			@Override
+			public int compare(File first, File second) {
+				long firstSequence = sequenceOf(first), secondSequence = sequenceOf(second);
+				if (firstSequence != secondSequence)
+					return Long.compare(firstSequence, secondSequence);
+
+				// Segments named by the previous versions, which had no sequence number.
+				if (first.lastModified() != second.lastModified())
+					return Long.compare(first.lastModified(), second.lastModified());
+				return first.getName().compareTo(second.getName());
+			}
+		});
+		return segments;
+	}
+
+	/**
+	 * @return The sequence number of the segment, or -1 if it was named by a previous version.
+	 */
+
+	private static long sequenceOf(File segment) {
+		String name = segment.getName();
+		if (name.startsWith(SEGMENT_PREFIX)) {
+			try {
+				return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+			} catch (NumberFormatException e) {
+				// Not a sequence number.
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Append to the last segment if it's not full, otherwise create a new one.
+	 */
+
+	private void openSegment() throws IOException {
+		closeSegment();
+
+		File[] segments = segments();
+		if (segments.length != 0) {
+			File lastSegment = segments[segments.length - 1];
+			long segmentBytes = lastSegment.length();
+			int numOfRecords = (int) ((segmentBytes - HEADER_BYTES) / recordBytes);
+
+			if (segmentBytes >= HEADER_BYTES && numOfRecords < MuonTeacherConst.SEGMENT_RECORDS) {
+				FileChannel channel = new RandomAccessFile(lastSegment, "rw").getChannel();
+				ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				channel.read(header, 0);
+
+				if (versionOf(header, lastSegment) == VERSION) {
+					// Drop the record which was only partially written, if any.
+					channel.truncate(HEADER_BYTES + (long) numOfRecords * recordBytes);
+					channel.position(channel.size());
+					segmentChannel = channel;
+					segmentRecords = numOfRecords;
+					return;
+				}
+
+				channel.close();
+			}
+		}
+
+		long sequence = segments.length != 0 ? sequenceOf(segments[segments.length - 1]) + 1 : 0;
+		File segment = new File(directory, SEGMENT_PREFIX + sequence + SEGMENT_EXTENSION);
+		if (!segment.createNewFile())
+			throw new IOException(segment.getName() + " already exists");
+		segmentChannel = new RandomAccessFile(segment, "rw").getChannel();
+		segmentRecords = 0;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(numOfPixels).putInt(recordBytes);
+		header.flip();
+		while (header.hasRemaining())
+			segmentChannel.write(header);
+	}
+
+	private void closeSegment() {
+		if (segmentChannel == null)
+			return;
+
+		try {
+			segmentChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		segmentChannel = null;
+	}
+
+	/**
+	 * Move into the segments the maps saved one per file by the previous versions of the application.
+	 * The files are deserialized in parallel by the common fork-join pool. A file which can't be read
+	 * is renamed with the extension .corrupt, so that it's not read again. The maps saved before they
+	 * were resampled into the grid are cropped first; a file whose map can't be cropped is renamed
+	 * with the extension .unmigrated and reported once, rather than being read at every load.
+	 */
+
+	private void migrateLegacyFiles() {
+		synchronized (migrationLock) {
+			File[] legacyFiles = directory.listFiles(new FilenameFilter() {
+				@Override
+				public boolean accept(File dir, String name) {
+					return name.endsWith(".gcnd");
+				}
+			});
+			if (legacyFiles == null || legacyFiles.length == 0)
+				return;
+
+			final AtomicInteger numOfUnmigratedFiles = new AtomicInteger(0);
+			ArrayList<Callable<Boolean>> migrations = new ArrayList<>(legacyFiles.length);
+			for (final File legacyFile : legacyFiles) {
+				migrations.add(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						return migrateLegacyFile(legacyFile, numOfUnmigratedFiles);
+					}
+				});
+			}
+
+			int numOfMigratedFiles = 0;
+			for (Future<Boolean> migration : ForkJoinPool.commonPool().invokeAll(migrations)) {
+				try {
+					if (migration.get())
+						numOfMigratedFiles++;
+				} catch (InterruptedException | ExecutionException e) {
+					e.printStackTrace();
+				}
+			}
+
+			System.out.println("DatasetStore: " + numOfMigratedFiles + " of " + legacyFiles.length + 
+					" files moved into the segments of " + directory.getName());
+
+			if (numOfUnmigratedFiles.get() != 0)
+				Main.updateLogPanel("" + numOfUnmigratedFiles.get() + " pics of " + directory.getName() +
+						" could not be cropped and were renamed .unmigrated", Color.RED);
+		}
+	}
+
+	private boolean migrateLegacyFile(File legacyFile, AtomicInteger numOfUnmigratedFiles) {
+		GrayscaleCandidate grayscaleCandidate;
+		try (ObjectInputStream objectInputStream = new ObjectInputStream(new FileInputStream(legacyFile))) {
+			grayscaleCandidate = (GrayscaleCandidate) objectInputStream.readObject();
+		} catch (InvalidObjectException e) {
+			// The map was read but it's too large to be kept and can't be cropped.
+			return skipLegacyFile(legacyFile, e.getMessage(), numOfUnmigratedFiles);
+		} catch (ClassNotFoundException | IOException | ClassCastException e) {
+			System.out.println("ERROR: " + legacyFile.getName() + " could not be read");
+			legacyFile.renameTo(new File(legacyFile.getPath() + ".corrupt"));
+			return false;
+		}
+
+		// The segments only hold maps of the grid.
+		try {
+			grayscaleCandidate = grayscaleCandidate.fittedToGrid();
+		} catch (IllegalArgumentException e) {
+			return skipLegacyFile(legacyFile, e.getMessage(), numOfUnmigratedFiles);
+		}
+
+		if (!append(grayscaleCandidate))
+			return false;
+
+		legacyFile.delete();
+		return true;
+	}
+
+	private boolean skipLegacyFile(File legacyFile, String reason, AtomicInteger numOfUnmigratedFiles) {
+		System.out.println("ERROR: " + legacyFile.getName() + " could not be migrated: " + reason);
+		legacyFile.renameTo(new File(legacyFile.getPath() + ".unmigrated"));
+		numOfUnmigratedFiles.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Close the segment of all the stores.
+	 */
+
+	static void closeAll() {
+		for (DatasetStore store : stores.values()) {
+			synchronized (store) {
+				store.closeSegment();
+			}
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package overmind_app;
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Iterates over the maps of a dataset without loading all of them in memory. A background thread
+ * reads the next DATASET_PREFETCH maps from the mapped segments while the current one is used.
+ * The maps of a dataset which has already been loaded whole are iterated in the same order.
+ *
+ * In the training order the tracks and the spots alternate, as long as there are both, and the
+ * maps of the other classes follow in the order of the dataset. To build this order only the
+ * tags of the records are scanned, the maps are read when they are needed.
+ * @author rodolfo
+ *
+ */
+
+public class DatasetStream implements Iterator<GrayscaleCandidate> {
+
+	// Tells the iterator that there are no more maps.
+	private static final GrayscaleCandidate LAST_CANDIDATE = new GrayscaleCandidate(new short[0], MuonTeacherConst.UNDETERMINED);
+
+	private final DatasetStore store;
+	private final DatasetStore.Segment[] segments;
+	private final int size;
+
+	// Maps of a dataset loaded in memory, in the order in which they are returned. Null if they are read from the segments.
+	private final Iterator<GrayscaleCandidate> loadedCandidates;
+
+	// Segment and record of each map in the order in which they are read, or null if it's the order of the dataset.
+	private final long[] readOrder;
+
+	private final ArrayBlockingQueue<GrayscaleCandidate> prefetchedCandidates =
+			new ArrayBlockingQueue<>(MuonTeacherConst.DATASET_PREFETCH);
+	private final Thread prefetcherThread;
+	private GrayscaleCandidate nextCandidate = null;
+
+	// Error which stopped the prefetcher before the end of the dataset, reported by hasNext.
+	private volatile Throwable readFailure = null;
+
+	DatasetStream(DatasetStore store, boolean interleaveClasses) {
+		this.store = store;
+		segments = store.mapSegments();
+
+		int numOfRecords = 0;
+		for (DatasetStore.Segment segment : segments)
+			numOfRecords += segment.numOfRecords;
+		size = numOfRecords;
+
+		readOrder = interleaveClasses ? interleavedOrder() : null;
+		loadedCandidates = null;
+
+		prefetcherThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				prefetch();
+			}
+		}, "DatasetPrefetcher");
+		prefetcherThread.setDaemon(true);
+		prefetcherThread.start();
+	}
+
+	/**
+	 * @param loadedCandidates The maps of a dataset in the order of the dataset.
+	 */
+
+	DatasetStream(ArrayList<GrayscaleCandidate> loadedCandidates, boolean interleaveClasses) {
+		store = null;
+		segments = null;
+		readOrder = null;
+		prefetcherThread = null;
+
+		ArrayList<GrayscaleCandidate> orderedCandidates = loadedCandidates;
+		if (interleaveClasses) {
+			ArrayList<GrayscaleCandidate> tracks = new ArrayList<>(), spots = new ArrayList<>(), others = new ArrayList<>();
+			for (GrayscaleCandidate candidate : loadedCandidates) {
+				switch (candidate.lable) {
+					case MuonTeacherConst.TRACK:
+						tracks.add(candidate);
+						break;
+					case MuonTeacherConst.SPOT:
+						spots.add(candidate);
+						break;
+					default:
+						others.add(candidate);
+				}
+			}
+
+			orderedCandidates = new ArrayList<>(loadedCandidates.size());
+			for (int typeIndex = 0; typeIndex < Math.max(tracks.size(), spots.size()); typeIndex++) {
+				if (typeIndex < tracks.size())
+					orderedCandidates.add(tracks.get(typeIndex));
+				if (typeIndex < spots.size())
+					orderedCandidates.add(spots.get(typeIndex));
+			}
+			orderedCandidates.addAll(others);
+		}
+
+		size = orderedCandidates.size();
+		this.loadedCandidates = orderedCandidates.iterator();
+	}
+
+	/**
+	 * @return The number of maps of the dataset.
+	 */
+
+	int size() {
+		return size;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (loadedCandidates != null)
+			return loadedCandidates.hasNext();
+
+		if (nextCandidate == null) {
+			try {
+				nextCandidate = prefetchedCandidates.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		if (nextCandidate == LAST_CANDIDATE && readFailure != null) {
+			readFailure.printStackTrace();
+			Main.updateLogPanel("Dataset could not be read to the end", Color.RED);
+			readFailure = null;
+		}
+
+		return nextCandidate != LAST_CANDIDATE;
+	}
+
+	@Override
+	public GrayscaleCandidate next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		if (loadedCandidates != null)
+			return loadedCandidates.next();
+
+		GrayscaleCandidate candidate = nextCandidate;
+		nextCandidate = null;
+		return candidate;
+	}
+
+	/**
+	 * Stop reading the maps. Must be called if the stream is not read to the end.
+	 */
+
+	void close() {
+		if (prefetcherThread != null)
+			prefetcherThread.interrupt();
+	}
+
+	/*
+	 * The last candidate is queued even if a map can't be read, for example because the segment
+	 * has been truncated, otherwise the iterator would wait for it forever.
+	 */
+
+	private void prefetch() {
+		try {
+			if (readOrder == null) {
+				for (DatasetStore.Segment segment : segments) {
+					for (int record = 0; record < segment.numOfRecords; record++)
+						prefetchedCandidates.put(store.read(segment, record));
+				}
+			} else {
+				for (long position : readOrder)
+					prefetchedCandidates.put(store.read(segments[(int) (position >>> 32)], (int) position));
+			}
+		} catch (InterruptedException e) {
+			// The stream has been closed.
+			return;
+		} catch (RuntimeException | Error e) {
+			readFailure = e;
+		}
+
+		try {
+			prefetchedCandidates.put(LAST_CANDIDATE);
+		} catch (InterruptedException e) {
+			// The stream has been closed.
+		}
+	}
+
+	private long[] interleavedOrder() {
+		long[] tracks = new long[size], spots = new long[size], others = new long[size];
+		int numOfTracks = 0, numOfSpots = 0, numOfOthers = 0;
+
+		for (int segmentIndex = 0; segmentIndex < segments.length; segmentIndex++) {
+			for (int record = 0; record < segments[segmentIndex].numOfRecords; record++) {
+				long position = (long) segmentIndex << 32 | record;
+				switch (segments[segmentIndex].lableOf(record)) {
+					case MuonTeacherConst.TRACK:
+						tracks[numOfTracks++] = position;
+						break;
+					case MuonTeacherConst.SPOT:
+						spots[numOfSpots++] = position;
+						break;
+					default:
+						others[numOfOthers++] = position;
+				}
+			}
+		}
+
+		long[] order = new long[size];
+		int orderIndex = 0;
+		for (int typeIndex = 0; typeIndex < Math.max(numOfTracks, numOfSpots); typeIndex++) {
+			if (typeIndex < numOfTracks)
+				order[orderIndex++] = tracks[typeIndex];
+			if (typeIndex < numOfSpots)
+				order[orderIndex++] = spots[typeIndex];
+		}
+		System.arraycopy(others, 0, order, orderIndex, numOfOthers);
+
+		return order;
+	}
+}
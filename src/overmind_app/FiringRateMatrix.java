@@ -0,0 +1,365 @@
+package overmind_app;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Matrix of the mean firing rates of the neurons of all the nodes. The rates of every 
+ * node are stored one after the other in the same contiguous arrays, starting at the offset 
+ * of the slot of the node, so that the readout can stream them linearly and a snapshot of 
+ * all the rates is a single bulk copy. 
+ * 
+ * The rates follow the moving average r <- r + MEAN_RATE_INCREMENT * (spike - r), which 
+ * every frame decays the rate of a silent neuron by a factor (1 - MEAN_RATE_INCREMENT). Rather than 
+ * decaying all the neurons every frame, the matrix remembers for each neuron the frame at 
+ * which its rate was last updated and applies the accumulated decay, (1 - MEAN_RATE_INCREMENT)^n, 
+ * only when the neuron spikes again or when its rate is read. Hence, the cost of a frame 
+ * depends on the number of spikes and not on the number of neurons. 
+ * 
+ * The matrix also keeps, for each slot, the running sum of the squares of the rates, so that 
+ * the length of the rates vector of a node can be read without visiting its neurons. 
+ * 
+ * When most of the neurons spike the lazy update loses its advantage, therefore the matrix
+ * can also use a dense kernel which updates all the neurons with straight-line arithmetic, 
+ * a loop simple enough to be vectorized by the JIT compiler. 
+ * 
+ * Each slot must be updated by a single thread, but different slots can be updated concurrently.
+ * Readers never block the writers: every slot is guarded by a sequence lock, whose counter is odd 
+ * while a frame is being applied, and readers retry until they have copied the slot 
+ * between two frames. Resetting the matrix only increments an epoch: readers treat the slots
+ * of older epochs as zeros, and each writer clears its own slot before applying the next frame.
+ * @author rodolfo
+ *
+ */
+
+public class FiringRateMatrix {
+	
+	/* Kernels used to update the rates */
+	
+	static final int LAZY_KERNEL = 0;
+	static final int DENSE_KERNEL = 1;
+	static final int AUTO_KERNEL = 2; // Choose the kernel frame by frame depending on how many neurons spiked.
+	
+	// Kernel in use. Can be chosen when the application is launched with -Dovermind.firingRateKernel=lazy|dense|auto
+	static volatile int kernel = parseKernel(System.getProperty("overmind.firingRateKernel", "auto"));
+	
+	// Powers of the decay factor. Past the end of the table the decay is so strong that the rate is 0.
+	private static final float[] DECAY_POWERS = new float[MuonTeacherConst.DECAY_TABLE_SIZE];
+	static {
+		DECAY_POWERS[0] = 1.0f;
+		for (int n = 1; n < DECAY_POWERS.length; n++)
+			DECAY_POWERS[n] = DECAY_POWERS[n - 1] * (1 - MuonTeacherConst.MEAN_RATE_INCREMENT);
+	}
+	
+	// Distance, in number of elements, between the data of two slots. Slots written by different 
+	// threads are kept 64 bytes apart so that they don't share a cache line.
+	private static final int SLOT_STRIDE = 16;
+	
+	private final int numOfSlots;
+	private final int[] offsets; // Index of the first neuron of each slot.
+	private final int[] numOfNeurons;
+	
+	/* Per neuron arrays */
+	
+	private final float[] rates; // Rate of each neuron at the frame returned by lastFrameOf.
+	private final int[] lastFrames; // Frame of the last lazy update of each neuron.
+	private final float[] spikesMask; // Spikes of the current frame expanded into 0s and 1s. Used by the dense kernel.
+	
+	/* Per slot counters, stored at slot * SLOT_STRIDE */
+	
+	private final int[] frames; // Number of frames received so far.
+	private final int[] settledFrames; // Frame at which all the neurons of the slot were last updated together.
+	private final double[] sumsOfSquares; // Sum of the squares of the rates of the slot as of the last frame.
+	private final int[] slotEpochs; // Epoch to which the data of the slot belong.
+	private final AtomicLongArray sequences; // Sequence lock of each slot. Odd while the slot is being written.
+	
+	private volatile int epoch = 0; // Incremented every time the matrix is reset.
+	
+	FiringRateMatrix(int[] numOfNeurons) {
+		numOfSlots = numOfNeurons.length;
+		this.numOfNeurons = numOfNeurons.clone();
+		offsets = new int[numOfSlots];
+		
+		int totalLength = 0;
+		for (int slot = 0; slot < numOfSlots; slot++) {
+			offsets[slot] = totalLength;
+			totalLength += (numOfNeurons[slot] + SLOT_STRIDE - 1) / SLOT_STRIDE * SLOT_STRIDE;
+		}
+		
+		rates = new float[totalLength];
+		lastFrames = new int[totalLength];
+		spikesMask = new float[totalLength];
+		frames = new int[numOfSlots * SLOT_STRIDE];
+		settledFrames = new int[numOfSlots * SLOT_STRIDE];
+		sumsOfSquares = new double[numOfSlots * SLOT_STRIDE];
+		slotEpochs = new int[numOfSlots * SLOT_STRIDE];
+		sequences = new AtomicLongArray(numOfSlots * SLOT_STRIDE);
+	}
+	
+	static int parseKernel(String kernelName) {
+		switch (kernelName) {
+			case "lazy":
+				return LAZY_KERNEL;
+			case "dense":
+				return DENSE_KERNEL;
+			case "auto":
+				return AUTO_KERNEL;
+			default:
+				System.out.println("ERROR: unknown firing rate kernel " + kernelName + ", using auto.");
+				return AUTO_KERNEL;
+		}
+	}
+	
+	static float decay(int elapsedFrames) {
+		// A negative value can only come from a torn read, which is discarded anyway.
+		return elapsedFrames >= 0 & elapsedFrames < DECAY_POWERS.length ? DECAY_POWERS[elapsedFrames] : 0.0f;
+	}
+	
+	int numOfSlots() {
+		return numOfSlots;
+	}
+	
+	int numOfNeurons(int slot) {
+		return numOfNeurons[slot];
+	}
+	
+	int offsetOf(int slot) {
+		return offsets[slot];
+	}
+	
+	/**
+	 * @return The length of the array needed to store a copy of all the rates.
+	 */
+	
+	int totalLength() {
+		return rates.length;
+	}
+	
+	/**
+	 * Read the 64 bits of the frame starting at byteOffset. Bits past the last neuron are cleared.
+	 */
+	
+	private static long wordAt(ByteBuffer spikesBuffer, int byteOffset, int numOfBytes, int numOfNeurons) {
+		long word;
+		if (byteOffset + 8 <= numOfBytes) {
+			word = spikesBuffer.getLong(byteOffset);
+		} else {
+			word = 0;
+			for (int byteIndex = byteOffset; byteIndex < numOfBytes; byteIndex++) 
+				word |= (spikesBuffer.get(byteIndex) & 0xffL) << ((byteIndex - byteOffset) * 8);
+		}
+		
+		int neuronsLeft = numOfNeurons - byteOffset * 8;
+		if (neuronsLeft < 64)
+			word &= (1L << neuronsLeft) - 1;
+		
+		return word;
+	}
+	
+	/**
+	 * Update the rates of a slot with a new frame of spikes. Bit i of the frame, counting from 
+	 * the least significant bit of the first byte, is set if neuron i has spiked. The 
+	 * buffer must be in little endian order. 
+	 */
+	
+	void update(int slot, ByteBuffer spikesBuffer) {
+		update(slot, spikesBuffer, 1);
+	}
+	
+	/**
+	 * Update the rates of a slot with several frames merged into one. The rates decay as if
+	 * numOfFrames frames had been received, and the spikes are applied in the last of them.
+	 */
+	
+	void update(int slot, ByteBuffer spikesBuffer, int numOfFrames) {
+		// Signal the readers that the slot is being modified.
+		long sequence = sequences.getAndIncrement(slot * SLOT_STRIDE);
+		try {
+			// If the matrix has been reset since the last frame, clear the slot first.
+			int currentEpoch = epoch;
+			if (slotEpochs[slot * SLOT_STRIDE] != currentEpoch) {
+				clearSlot(slot);
+				slotEpochs[slot * SLOT_STRIDE] = currentEpoch;
+			}
+			
+			applyFrame(slot, spikesBuffer, numOfFrames);
+		} finally {
+			sequences.lazySet(slot * SLOT_STRIDE, sequence + 2);
+		}
+	}
+	
+	private void clearSlot(int slot) {
+		int offset = offsets[slot];
+		Arrays.fill(rates, offset, offset + numOfNeurons[slot], 0.0f);
+		Arrays.fill(lastFrames, offset, offset + numOfNeurons[slot], 0);
+		frames[slot * SLOT_STRIDE] = 0;
+		settledFrames[slot * SLOT_STRIDE] = 0;
+		sumsOfSquares[slot * SLOT_STRIDE] = 0;
+	}
+	
+	private void applyFrame(int slot, ByteBuffer spikesBuffer, int numOfFrames) {
+		int slotNeurons = numOfNeurons[slot];
+		int numOfBytes = Math.min((slotNeurons + 7) / 8, spikesBuffer.limit());
+		int frame = frames[slot * SLOT_STRIDE] += numOfFrames;
+		int currentKernel = kernel;
+		
+		if (currentKernel == AUTO_KERNEL) {
+			int numOfSpikes = 0;
+			for (int byteOffset = 0; byteOffset < numOfBytes; byteOffset += 8) 
+				numOfSpikes += Long.bitCount(wordAt(spikesBuffer, byteOffset, numOfBytes, slotNeurons));
+			currentKernel = numOfSpikes * MuonTeacherConst.DENSE_KERNEL_RATIO > slotNeurons ? 
+					DENSE_KERNEL : LAZY_KERNEL;
+		}
+		
+		if (currentKernel == DENSE_KERNEL) 
+			updateDense(slot, frame, spikesBuffer, numOfBytes);
+		else
+			updateLazy(slot, frame, numOfFrames, spikesBuffer, numOfBytes);
+	}
+	
+	private void updateLazy(int slot, int frame, int numOfFrames, ByteBuffer spikesBuffer, int numOfBytes) {
+		int offset = offsets[slot], slotNeurons = numOfNeurons[slot];
+		int settledFrame = settledFrames[slot * SLOT_STRIDE];
+		final float increment = MuonTeacherConst.MEAN_RATE_INCREMENT;
+		
+		// All the rates decay by the elapsed frames, hence so does the sum of their squares.
+		final double decayFactor = numOfFrames == 1 ? 1 - increment : decay(numOfFrames);
+		double sumOfSquares = sumsOfSquares[slot * SLOT_STRIDE] * decayFactor * decayFactor;
+		
+		// Scan the frame 64 bits at a time, visiting only the bits which are set.
+		// For each of them, (u + a)^2 - u^2 is added to the sum, where u is the decayed rate.
+		for (int byteOffset = 0; byteOffset < numOfBytes; byteOffset += 8) {
+			long word = wordAt(spikesBuffer, byteOffset, numOfBytes, slotNeurons);
+			
+			while (word != 0) {
+				int index = offset + byteOffset * 8 + Long.numberOfTrailingZeros(word);
+				float decayedRate = rates[index] * decay(frame - Math.max(lastFrames[index], settledFrame));
+				rates[index] = decayedRate + increment;
+				lastFrames[index] = frame;
+				sumOfSquares += (2 * decayedRate + increment) * increment;
+				word &= word - 1;
+			}
+		}
+		
+		sumsOfSquares[slot * SLOT_STRIDE] = sumOfSquares;
+	}
+	
+	private void updateDense(int slot, int frame, ByteBuffer spikesBuffer, int numOfBytes) {
+		int offset = offsets[slot], slotNeurons = numOfNeurons[slot];
+		int end = offset + slotNeurons;
+		int settledFrame = settledFrames[slot * SLOT_STRIDE];
+		
+		// Bring all the neurons to the previous frame, if the last frames were processed lazily.
+		if (settledFrame != frame - 1) {
+			for (int index = offset; index < end; index++) 
+				rates[index] *= decay(frame - 1 - Math.max(lastFrames[index], settledFrame));
+		}
+		
+		// Expand the bits into a mask of 0s and 1s, without branches.
+		for (int byteOffset = 0; byteOffset < numOfBytes; byteOffset += 8) {
+			long word = wordAt(spikesBuffer, byteOffset, numOfBytes, slotNeurons);
+			int firstIndex = offset + byteOffset * 8;
+			int lastIndex = Math.min(firstIndex + 64, end);
+			for (int index = firstIndex; index < lastIndex; index++) 
+				spikesMask[index] = (float) ((word >>> (index - firstIndex)) & 1);
+		}
+		for (int index = offset + numOfBytes * 8; index < end; index++)
+			spikesMask[index] = 0.0f; // The frame was shorter than expected.
+		
+		// Blend the increment and the decay of all the neurons at once. The sum of the squares
+		// is computed again from scratch, which also discards the rounding errors accumulated so far.
+		final float decayFactor = 1 - MuonTeacherConst.MEAN_RATE_INCREMENT;
+		double sumOfSquares = 0;
+		for (int index = offset; index < end; index++) {
+			float rate = rates[index] * decayFactor + MuonTeacherConst.MEAN_RATE_INCREMENT * spikesMask[index];
+			rates[index] = rate;
+			sumOfSquares += rate * rate;
+		}
+		
+		settledFrames[slot * SLOT_STRIDE] = frame;
+		sumsOfSquares[slot * SLOT_STRIDE] = sumOfSquares;
+	}
+	
+	/**
+	 * Set all the rates to zero. The operation is atomic for the readers and doesn't wait 
+	 * for the writers. 
+	 */
+	
+	void reset() {
+		epoch++; // Only the thread which reads the rates resets them.
+	}
+	
+	/**
+	 * Wait for the writer of the slot to finish the frame it is applying, if any.
+	 * @return The sequence number to be validated after the slot has been read.
+	 */
+	
+	private long beginRead(int slot) {
+		long sequence;
+		while (((sequence = sequences.get(slot * SLOT_STRIDE)) & 1) != 0)
+			Thread.yield();
+		return sequence;
+	}
+	
+	/**
+	 * @return true if the slot wasn't modified since beginRead. The compare-and-set, rather than
+	 * a plain read, prevents the reads of the slot from being moved after the check.
+	 */
+	
+	private boolean validateRead(int slot, long sequence) {
+		return sequences.compareAndSet(slot * SLOT_STRIDE, sequence, sequence);
+	}
+	
+	/**
+	 * @return The length of the vector made of the rates of the neurons of the slot, as of the 
+	 * last frame received by the slot. 
+	 */
+	
+	double vectorLength(int slot) {
+		int currentEpoch = epoch;
+		double sumOfSquares;
+		long sequence;
+		
+		do {
+			sequence = beginRead(slot);
+			sumOfSquares = slotEpochs[slot * SLOT_STRIDE] == currentEpoch ? 
+					sumsOfSquares[slot * SLOT_STRIDE] : 0.0;
+		} while (!validateRead(slot, sequence));
+		
+		return Math.sqrt(Math.max(sumOfSquares, 0.0));
+	}
+	
+	/**
+	 * Copy the rates of the slot into the destination array, starting at offsetOf(slot). The copy
+	 * is consistent: it reflects the state of the slot between two frames.
+	 */
+	
+	void snapshot(int slot, float[] destination) {
+		int currentEpoch = epoch;
+		int offset = offsets[slot], end = offset + numOfNeurons[slot];
+		long sequence;
+		
+		do {
+			sequence = beginRead(slot);
+			
+			if (slotEpochs[slot * SLOT_STRIDE] != currentEpoch) {
+				Arrays.fill(destination, offset, end, 0.0f);
+			} else {
+				// Copy the rates applying the decay which is still pending.
+				int frame = frames[slot * SLOT_STRIDE], settledFrame = settledFrames[slot * SLOT_STRIDE];
+				for (int index = offset; index < end; index++) 
+					destination[index] = rates[index] * decay(frame - Math.max(lastFrames[index], settledFrame));
+			}
+		} while (!validateRead(slot, sequence));
+	}
+	
+	/**
+	 * Copy the rates of all the slots into the destination array, which must be at least 
+	 * totalLength() long. The rates of slot s start at offsetOf(s). 
+	 */
+	
+	void snapshot(float[] destination) {
+		for (int slot = 0; slot < numOfSlots; slot++)
+			snapshot(slot, destination);
+	}
+}
@@ -1,13 +1,185 @@
 package overmind_app;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 
+/**
+ * Luminance map of a candidate picture and its tag. Since the pictures are almost entirely
+ * black, only the pixels with a non-zero luminance are stored: their indexes in increasing
+ * order and their luminance. The luminance is derived from a single 8 bits channel, hence it's
+ * stored exactly as a code of LUMINANCE_CODES: the channel which determines it times 256 plus
+ * the value of the channel. A lit pixel never has code 0, so that it stays lit however dim it is.
+ * @author rodolfo
+ *
+ */
+
 public class GrayscaleCandidate implements Serializable {
-	public float[] grayscalePixels;
+	// Same as the one computed for the original dense class, so that the files saved with it can still be read.
+	private static final long serialVersionUID = -2403073145704468109L;
+
+	// Largest map whose pixels can all be indexed by a short.
+	private static final int MAX_SPARSE_PIXELS = Short.MAX_VALUE + 1;
+
+	public float[] grayscalePixels; // Dense map of the luminance. Only found in the files saved by the original class, null otherwise.
+	public float[] litLuminance; // Luminance of the lit pixels. Only found in the files saved by the first sparse class, null otherwise.
 	public int lable;
-	
+
+	/* Sparse map of the luminance */
+
+	public int numOfPixels;
+	public short[] litPixels;
+	public short[] litCodes; // Codes of the luminance of the lit pixels.
+
 	public GrayscaleCandidate(float[] grayscalePixels, int lable) {
-		this.grayscalePixels = new float[grayscalePixels.length];
-        System.arraycopy(grayscalePixels, 0, this.grayscalePixels, 0, grayscalePixels.length);
-        this.lable = lable;
+		setSparseMap(grayscalePixels);
+		this.lable = lable;
+	}
+
+	private void setSparseMap(float[] grayscalePixels) {
+		// The indexes of the lit pixels are shorts, hence larger maps are cropped first.
+		if (grayscalePixels.length > MAX_SPARSE_PIXELS)
+			grayscalePixels = cropToGrid(grayscalePixels);
+
+		int numOfLitPixels = 0;
+		for (float luminance : grayscalePixels) {
+			if (luminance != 0.0f)
+				numOfLitPixels++;
+		}
+
+		numOfPixels = grayscalePixels.length;
+		litPixels = new short[numOfLitPixels];
+		litCodes = new short[numOfLitPixels];
+
+		int litIndex = 0;
+		for (int pixel = 0; pixel < grayscalePixels.length; pixel++) {
+			if (grayscalePixels[pixel] != 0.0f) {
+				litPixels[litIndex] = (short) pixel;
+				litCodes[litIndex] = (short) codeOf(grayscalePixels[pixel]);
+				litIndex++;
+			}
+		}
+	}
+
+	/**
+	 * @param codes The code of the luminance of each pixel of the map.
+	 */
+
+	public GrayscaleCandidate(short[] codes, int lable) {
+		if (codes.length > MAX_SPARSE_PIXELS)
+			throw new IllegalArgumentException("map of " + codes.length + " pixels is too large to be stored");
+
+		int numOfLitPixels = 0;
+		for (short code : codes) {
+			if (code != 0)
+				numOfLitPixels++;
+		}
+
+		numOfPixels = codes.length;
+		litPixels = new short[numOfLitPixels];
+		litCodes = new short[numOfLitPixels];
+		this.lable = lable;
+
+		int litIndex = 0;
+		for (int pixel = 0; pixel < codes.length; pixel++) {
+			if (codes[pixel] != 0) {
+				litPixels[litIndex] = (short) pixel;
+				litCodes[litIndex] = codes[pixel];
+				litIndex++;
+			}
+		}
+	}
+
+	/*
+	 * Luminance of each code. The three tables are contiguous: if green is 0 the luminance 
+	 * depends on red, else if blue is 0 it depends on green, otherwise on blue. The values 
+	 * are computed with the same expressions used originally pixel by pixel, so that the 
+	 * result is identical. The luminance never decreases as the code grows.
+	 */
+
+	static final float[] LUMINANCE_TABLE = new float[MuonTeacherConst.LUMINANCE_CODES];
+	static {
+		for (int value = 0; value < 256; value++) {
+			LUMINANCE_TABLE[value] = (float)value / 255 * 0.44f;
+			LUMINANCE_TABLE[256 + value] = 0.44f + (float)value / 255 * 0.44f;
+			LUMINANCE_TABLE[512 + value] = 0.88f + (float)value / 255 * 0.12f;
+		}
+	}
+
+	/**
+	 * @return The code of the luminance, exact if the luminance is one of LUMINANCE_TABLE and
+	 * the closest one otherwise. 0 only if the luminance is not positive.
+	 */
+
+	static int codeOf(float luminance) {
+		if (!(luminance > 0.0f))
+			return 0;
+
+		// First code whose luminance is not lower, then the closest between it and the previous one.
+		int low = 1, high = MuonTeacherConst.LUMINANCE_CODES - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (LUMINANCE_TABLE[middle] < luminance)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		if (low > 1 && luminance - LUMINANCE_TABLE[low - 1] < LUMINANCE_TABLE[low] - luminance)
+			return low - 1;
+		return low;
+	}
+
+	static float luminanceOf(int code) {
+		return LUMINANCE_TABLE[code];
+	}
+
+	/**
+	 * @return The map cropped and resampled into the grid. The map must be square.
+	 */
+
+	private static float[] cropToGrid(float[] grayscalePixels) {
+		int width = (int) Math.sqrt(grayscalePixels.length);
+		if (width * width != grayscalePixels.length)
+			throw new IllegalArgumentException("map of " + grayscalePixels.length + " pixels is not square and can't be cropped");
+		return RegionOfInterest.cropAndResample(grayscalePixels, width, width);
+	}
+
+	/**
+	 * @return The map cropped and resampled into the grid, or this map if it already has the
+	 * pixels of the grid. The map must be square, as the pics sent by the MuonDetector app are.
+	 */
+
+	GrayscaleCandidate fittedToGrid() {
+		if (numOfPixels == MuonTeacherConst.MAX_PIC_PIXELS)
+			return this;
+
+		float[] grayscalePixels = new float[numOfPixels];
+		for (int litIndex = 0; litIndex < litPixels.length; litIndex++)
+			grayscalePixels[litPixels[litIndex]] = luminanceOf(litCodes[litIndex]);
+
+		return new GrayscaleCandidate(cropToGrid(grayscalePixels), lable);
+	}
+
+	private void readObject(ObjectInputStream objectInputStream) throws IOException, ClassNotFoundException {
+		objectInputStream.defaultReadObject();
+
+		// Convert the map of an old file, so that only the sparse codes are kept in memory.
+		if (grayscalePixels != null) {
+			try {
+				setSparseMap(grayscalePixels);
+			} catch (IllegalArgumentException e) {
+				throw new InvalidObjectException(e.getMessage());
+			}
+			grayscalePixels = null;
+		} else if (numOfPixels > MAX_SPARSE_PIXELS) {
+			// Saved before the large maps were cropped: the indexes of the lit pixels have wrapped around.
+			throw new InvalidObjectException("map of " + numOfPixels + " pixels has corrupt indexes");
+		} else if (litLuminance != null) {
+			litCodes = new short[litLuminance.length];
+			for (int litIndex = 0; litIndex < litLuminance.length; litIndex++)
+				litCodes[litIndex] = (short) codeOf(litLuminance[litIndex]);
+			litLuminance = null;
+		}
 	}
 }
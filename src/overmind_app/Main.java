@@ -6,7 +6,6 @@ import java.awt.Component;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -20,7 +19,6 @@ import java.util.Iterator;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 
-import javax.imageio.ImageIO;
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
 import javax.swing.DefaultListModel;
@@ -91,13 +89,16 @@ public class Main {
 		
 		displayMainFrame();
 		
-		populatePicsFolders();
+		// Convert the pics of the database in the background, so that the server is available in the meantime.
+		PicsImporter picsImporter = new PicsImporter();
+		picsImporter.start();
 		
 		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
 	        public void run() {
 	        	candidatePicsReceiver.shutdown = true;
 	        	serverInterfacer.shutdown = true;
 	        	NetworkTrainer.shutdown = true;
+	        	picsImporter.shutdown = true;
 	        	
 	        	try {
 					candidatePicsReceiver.serverSocket.close();
@@ -105,10 +106,16 @@ public class Main {
 					e.printStackTrace();
 				}
 	        	serverInterfacer.interrupt();        	
+	        	
+	        	// Interrupt the import, so that it doesn't wait for the queues to drain.
+	        	picsImporter.interrupt();
         	
 	        	try {
 					candidatePicsReceiver.join();
 					serverInterfacer.join();
+					picsImporter.join(MuonTeacherConst.IMPORT_SHUTDOWN_TIMEOUT);
+					if (picsImporter.isAlive())
+						System.out.println("ERROR: picsImporter didn't shutdown in time");
 					if (networkTrainerThread != null)
 						networkTrainerThread.join();
 					if (analyzerThread != null)
@@ -117,6 +124,9 @@ public class Main {
 					e.printStackTrace();
 				}
 	        	
+	        	DatasetStore.closeAll();
+	        	ContentIndex.closeShared();
+	        	
 	            System.out.println("MuonTeacher: Orderly shutdown succesfull");
 	        }
 	    }, "Shutdown-thread"));
@@ -636,74 +646,6 @@ public class Main {
 		mainFrame.setVisible(true);
 	}
 	
-	private static boolean populatePicsFolders() {
-		
-		/*
-		 * Get all the bitmaps that need to be converted into luminance 
-		 * maps.
-		 */
-		
-		String path = new File("").getAbsolutePath();
-		path = path.concat("/resources/pics/database");
-		File databasedDir = new File(path);
-		File[] databasePics = databasedDir.listFiles();
-		
-		if (databasePics.length == 0 | databasePics == null) {
-			updateLogPanel("No pics in the database", Color.RED);
-			return false;
-		}		
-		
-		/*
-		 * Extract the RGB data from the bitmap and send it to 
-		 * CandidatePicsReceiver to be converted into a luminance map. 
-		 */
-        
-        for (File pic : databasePics) {
-        	// Read the bitmap.
-        	BufferedImage bitmap = null;
-        	try {
-        		bitmap = ImageIO.read(pic.getAbsoluteFile());
-        	} catch (IOException e) {
-        		System.out.println(e);
-        	} 
-        	assert bitmap != null;
-        	
-        	// Extract the RGB data. 
-        	int[] pixels = new int[bitmap.getWidth() * bitmap.getHeight()];
-        	pixels = bitmap.getRGB(0, 0, bitmap.getWidth(), bitmap.getHeight(), pixels, 0, bitmap.getWidth());
-        	
-        	int tag = 0; // The tag to be associated with the luminance map.
-        	String fileName = pic.getName(); // The name of the file containing the tag. 
-        	boolean fileNameIsValid = true; // Flag used to signal if the file name does not contain any tag.
-        	
-        	// Retreive the tag to associate with the map in the GrayscaleCandidate object from the file name.
-        	if (fileName.contains("undetermined"))
-        		tag = MuonTeacherConst.UNDETERMINED;
-        	else if (fileName.contains("track"))
-        		tag = MuonTeacherConst.TRACK;
-        	else if (fileName.contains("spot"))
-        		tag = MuonTeacherConst.SPOT;
-        	else if (fileName.contains("nois"))
-        		tag = MuonTeacherConst.NOISE;
-        	else {
-        		fileNameIsValid = false;
-        		System.out.println("" + fileName + " is not a valid file name.");
-        	}
-        	
-        	// If the tag could be determined, run the Runnable that computes the luminance map. 
-        	if (fileNameIsValid) {
-        		CandidatePicsReceiver.ConvertGrayscale convertGrayscale = new CandidatePicsReceiver.ConvertGrayscale(pixels, tag, fileName);
-        		convertGrayscale.run();
-        		pic.delete();
-        	}
-        	
-        }        
-        
-        updateLogPanel("" + databasePics.length + " pics converted", Color.BLACK);
-		
-        return true;
-	}
-	
 	/**
 	 * Reset the network to the default state before any node was selected. 
 	 * This method is used whenever an error arises during either the training or the
@@ -18,7 +18,15 @@ public class MuonTeacherConst {
     static final float PAUSE_LENGTH = 
     		PAUSE_LENGTH_SIM_TIME * DELTA_TIME / DELTA_TIME_SIM; 
     static final short MAX_PIC_PIXELS = 1024; // The maximum number of pixels a sample image can be made of.
+    static final int LUMINANCE_CODES = 3 * 256; // Codes of the luminance of the pixels: one for each value of each of the three channels.
+    static final int PIC_SIDE = 32; // Side of the square grid into which the pics are resampled. Its square is MAX_PIC_PIXELS.
     static final float MEAN_RATE_INCREMENT = 0.01f; // Inverse of the number of samples need to compute the mean firing rate.
+    static final int DECAY_TABLE_SIZE = 4096; // Frames after which the firing rate of a silent neuron is considered 0.
+    static final int DENSE_KERNEL_RATIO = 8; // The dense kernel is used if more than 1 neuron out of DENSE_KERNEL_RATIO has spiked.
+    static final int LATENCY_WINDOW_FRAMES = 20; // Frames within which every pixel spikes with the latency coding.
+    static final int RANK_ORDER_PIXELS_PER_FRAME = 64; // Pixels which spike in each frame with the rank order coding.
+    static final int MAX_BURST_SPIKES = 5; // Length of the burst of a pixel of maximum luminance with the burst coding.
+    static final int SPARSE_ENCODING_RATIO = 4; // The rate coding visits only the lit pixels if fewer than 1 out of SPARSE_ENCODING_RATIO are lit.
     static final int MIN_ITERATIONS = 4; // Minimum number of times the same input can be presented to the network during learning. 
     static final int MAX_ITERATIONS = 8;
     static final int ITERATION_INCREMENT = 2;
@@ -33,14 +41,32 @@ public class MuonTeacherConst {
 	static final int MUON_DETECTOR_SERVER_PORT = 4197; // Port for the sending of pics from the MuonDetector application.
 	static final int APP_UDP_PORT = 4197; // Port through which the app send the Poisson spikes trains to the clients. 
     static final int IPTOS_RELIABILITY = 0x04;
+    static final int RECEIVER_CHANNELS = 1; // Channels sharing APP_UDP_PORT through SO_REUSEPORT. Can be overridden with -Dovermind.receiverChannels=N
+    static final int RECEIVER_SOCKET_BUFFER = 4 * 1024 * 1024; // Size in bytes of the SO_RCVBUF of each receiving channel.
     
     /* Math constants */
     static final int MILLS_TO_NANO_FACTOR = 1000000;
     static final float MIN_WEIGHT = 0.0078f;
     static final int SIZE_OF_FLOAT = 4;
     static final int SIZE_OF_BYTE = 1;
+    static final int SIZE_OF_SHORT = 2;
     static final int SIZE_OF_INT = 4;
+    static final int SIZE_OF_LONG = 8;
     
     /* Resource constants */
 	static final short MAX_DATA_BYTES = 8192;
+	static final int SPIKES_BUFFERS_POOL_SIZE = 256; // Number of direct buffers recycled by the spikes receiver. Shared by the lanes of all the nodes.
+	static final int SPIKES_LANE_CAPACITY = 32; // Frames that can be queued for a single node. Must be a power of 2.
+	static final long LANE_PARK_NANOS = 1000000; // Max time a lane waits for new frames before checking the shutdown flag.
+	static final int COALESCE_BACKLOG = 16; // Backlog of a lane past which the oldest frames are merged together.
+	static final int MAX_COALESCED_FRAMES = 8; // Max number of frames merged into a single update.
+	static final long SCHEDULER_SPIN_NANOS = 200000; // Time before each tick that the stimulation scheduler spins instead of parking.
+	static final int CONTENT_INDEX_SLOTS = 1 << 16; // Initial number of slots of the index of the converted pics. Must be a power of 2.
+	static final int IMPORT_DECODE_THREADS = Math.max(Runtime.getRuntime().availableProcessors() - 1, 1); // Workers decoding the pics of the database.
+	static final int IMPORT_QUEUE_CAPACITY = 64; // Pics which can wait to be decoded or saved during the import.
+	static final int DATASET_PREFETCH = 16; // Maps of a dataset read in advance while the current one is presented.
+	static final int LOAD_TASK_RECORDS = 512; // Records read by each task when a dataset is loaded in parallel.
+	static final int SEGMENT_RECORDS = 4096; // Max number of luminance maps stored in each segment file of a dataset.
+	static final int IMPORT_PROGRESS_STEP = 100; // Number of pics converted between two updates of the log.
+	static final long IMPORT_SHUTDOWN_TIMEOUT = 1000; // Max time in ms the shutdown waits for the import to stop.
 }
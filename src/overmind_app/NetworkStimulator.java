@@ -2,18 +2,16 @@ package overmind_app;
 import java.awt.Color;
 import overmind_server.*;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Class that contains methods to send an input to one or more layers of the
@@ -23,7 +21,22 @@ import java.util.concurrent.*;
 
 public class NetworkStimulator {
 	
-	private SpikeInputCreator spikeInputCreator = new SpikeInputCreator();
+	// Encoding of the inputs, fixed for the whole run.
+	final int encoding = SpikeInputCreator.encoding;
+	
+	// Spike trains of the current and of the next inputs.
+	private SpikeTrainCache spikeTrainCache = new SpikeTrainCache(encoding);
+	
+	// Inputs of the next presentation, as announced by prefetch.
+	private GrayscaleCandidate[] nextInputs = new GrayscaleCandidate[0];
+	
+	/*
+	 * Layers which receive the same input are sent the same spike train, which is encoded only once.
+	 * If each layer must receive an independent sample of the input, launch the application 
+	 * with -Dovermind.independentLayerSamples=true
+	 */
+	
+	boolean independentSamples = Boolean.getBoolean("overmind.independentLayerSamples");
 	private GrayscaleCandidate noiseCandidate = null;	
 	
 	/*
@@ -35,134 +48,206 @@ public class NetworkStimulator {
 		String path = new File("").getAbsolutePath();
 		path = path.concat("/resources/pics/tagged/noise");
 		File noiseDir = new File(path);
-		ArrayList<File> noiseFiles = new ArrayList<>(Arrays.asList(noiseDir.listFiles()));
-		
-		// Delete unwanted files that may have been included. 
-		Iterator<File> iterator = noiseFiles.iterator();
-		while (iterator.hasNext()) {
-			File file = iterator.next();
-			if (file.getName().equals(".gitignore"))
-				iterator.remove();
-		}
+		DatasetStream noiseStream = DatasetStore.of(noiseDir).stream(false);
 				
-		if (noiseFiles.size() == 0 | noiseFiles == null) {
+		if (!noiseStream.hasNext()) {
 			Main.updateLogPanel("Noise sample not found", Color.RED);			
 		} else {		
-			// Any of the noise picture is fine, so take the first one in the array. 
-			try {
-				FileInputStream fileInputStream = new FileInputStream(noiseFiles.get(0));
-				ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream); 
-				noiseCandidate = (GrayscaleCandidate) objectInputStream.readObject();
-			} catch (IOException | ClassNotFoundException e) {
-				e.printStackTrace();
-			} 
+			// Any of the noise picture is fine, so take the first one in the dataset. 
+			noiseCandidate = noiseStream.next();
 		}
+		noiseStream.close();
 	}
 	
-	// Hash map used to store the sockets which send the inputs to the terminals.
-	ConcurrentHashMap<Integer, DatagramSocket> socketsHashMap = null;
+	// Channel through which the inputs are sent to all the terminals.
+	private SpikesSender spikesSender = null;
 	
-	// Create a service for the threads that send the inputs to the respectinve input layers.
-	ExecutorService inputSenderService = null;
+	// Thread that emits the frames of all the input layers. 
+	private StimulationScheduler stimulationScheduler = null;
 		
 	/**
 	 * Send a luminance map as an input to the chosen input layers. 
-	 * Launch a separate thread for each layer to send the inputs. Then wait 
-	 * for the threads to finish their jobs before returning.  
+	 * The frames of all the layers are emitted by the same scheduler thread, one every deltaTime ms. 
+	 * @param presentedAgain true if the same inputs may be presented once more, in which case their next trains are prefetched.
+	 * @return The futures which are completed when the stimulation of each layer is over. 
 	 */
 	
-	public ArrayList<Future<?>> stimulateWithLuminanceMap(float stimulationLength, float pauseLength, float deltaTime, Node[] inputLayers, GrayscaleCandidate[] inputs) {			
+	public ArrayList<Future<?>> stimulateWithLuminanceMap(float stimulationLength, float pauseLength, float deltaTime, Node[] inputLayers, GrayscaleCandidate[] inputs, 
+			boolean presentedAgain) {			
 		if (inputLayers.length != inputs.length) {
 			System.out.println("ERROR: number of inputs is different from number of input layers.");
 			return null;
 		}
 		
-		if (socketsHashMap == null | inputSenderService == null) {
-			socketsHashMap = new ConcurrentHashMap<>(inputLayers.length);
-			inputSenderService = Executors.newFixedThreadPool(inputs.length);
-		}		
+		if (stimulationScheduler == null) {
+			try {
+				spikesSender = new SpikesSender();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+			
+			// The frames queued by the layers during a tick are sent together at its end. 
+			final SpikesSender tickSender = spikesSender;
+			stimulationScheduler = new StimulationScheduler(deltaTime, new Runnable() {
+				@Override
+				public void run() {
+					tickSender.flush();
+				}
+			});
+			stimulationScheduler.start();
+		} else if (stimulationScheduler.getPeriodNanos() != (long) (deltaTime * MuonTeacherConst.MILLS_TO_NANO_FACTOR)) {
+			System.out.println("ERROR: deltaTime differs from the period of the stimulation scheduler.");
+			return null;
+		}
 				
-		// List of future objects used to signal when an inputSender thread is done.
+		// List of future objects used to signal when the stimulation of a layer is done.
 		ArrayList<Future<?>> inputSenderFutures = new ArrayList<Future<?>>(inputs.length);
+		InputSender[] inputSenders = new InputSender[inputs.length];
+		
+		int stimulationIterations = (int)(stimulationLength / deltaTime);
+		IdentityHashMap<GrayscaleCandidate, SpikeTrainCache.SpikeTrain> sharedTrains = 
+				independentSamples ? null : new IdentityHashMap<GrayscaleCandidate, SpikeTrainCache.SpikeTrain>();
 		
 		for (int index = 0; index < inputs.length; index++) {
-			// For each inputLayer start a thread to stimulate it.
-			Future<?> inputSenderFuture = 
-					inputSenderService.submit(new InputSender(stimulationLength, pauseLength, deltaTime, inputLayers[index], inputs[index]));
-							
-			inputSenderFutures.add(inputSenderFuture);
+			InetSocketAddress endpoint = spikesSender.endpointOf(inputLayers[index]);
+			if (endpoint == null) {
+				for (int senderIndex = 0; senderIndex < index; senderIndex++)
+					spikeTrainCache.release(inputSenders[senderIndex].spikeTrain);
+				return null;
+			}
+			
+			// Encode the train only for the first layer which receives the input, unless the samples must be independent.
+			SpikeTrainCache.SpikeTrain spikeTrain = sharedTrains != null ? sharedTrains.get(inputs[index]) : null;
+			if (spikeTrain != null) {
+				spikeTrainCache.share(spikeTrain);
+			} else {
+				spikeTrain = spikeTrainCache.take(inputs[index], stimulationIterations);
+				if (sharedTrains != null)
+					sharedTrains.put(inputs[index], spikeTrain);
+			}
+			
+			inputSenders[index] = new InputSender(stimulationLength, pauseLength, deltaTime, endpoint, spikeTrain);
+			inputSenderFutures.add(inputSenders[index].completion);
 		}			
 		
+		// The layers are stimulated in lockstep, starting from the same tick. 
+		stimulationScheduler.submit(inputSenders);
+		
+		// If the same inputs can be presented again, encode their next trains while these are sent.
+		Set<GrayscaleCandidate> retainedInputs = Collections.newSetFromMap(new IdentityHashMap<GrayscaleCandidate, Boolean>());
+		if (presentedAgain) {
+			for (GrayscaleCandidate input : trainsNeeded(inputs)) 
+				spikeTrainCache.prefetch(input, stimulationIterations);
+			retainedInputs.addAll(Arrays.asList(inputs));
+		}
+		retainedInputs.addAll(Arrays.asList(nextInputs));
+		spikeTrainCache.retainOnly(retainedInputs);
+		
 		return inputSenderFutures;
 	}
 	
+	/**
+	 * Announce the inputs of the next candidate, so that their spike trains can be encoded
+	 * while the current one is being presented. 
+	 */
+	
+	void prefetch(GrayscaleCandidate[] nextInputs, float stimulationLength, float deltaTime) {
+		this.nextInputs = nextInputs.clone();
+		for (GrayscaleCandidate input : trainsNeeded(this.nextInputs))
+			spikeTrainCache.prefetch(input, (int)(stimulationLength / deltaTime));
+	}
+	
+	/**
+	 * @return The inputs whose trains must be encoded for a presentation, one for each train.
+	 */
+	
+	private ArrayList<GrayscaleCandidate> trainsNeeded(GrayscaleCandidate[] inputs) {
+		if (independentSamples)
+			return new ArrayList<>(Arrays.asList(inputs));
+		
+		Set<GrayscaleCandidate> distinctInputs = Collections.newSetFromMap(new IdentityHashMap<GrayscaleCandidate, Boolean>());
+		ArrayList<GrayscaleCandidate> neededInputs = new ArrayList<>(inputs.length);
+		for (GrayscaleCandidate input : inputs) {
+			if (distinctInputs.add(input))
+				neededInputs.add(input);
+		}
+		return neededInputs;
+	}
+	
+	/**
+	 * Stop the scheduler and close the channel. The stimulations still in progress are cancelled. 
+	 * @return true if the scheduler stopped in time. 
+	 */
+	
+	boolean shutdown() {
+		boolean terminationSuccessful = true;
+		
+		if (stimulationScheduler != null) {
+			stimulationScheduler.shutdown = true;
+			LockSupport.unpark(stimulationScheduler);
+			try {
+				stimulationScheduler.join(100);
+				terminationSuccessful = !stimulationScheduler.isAlive();
+				if (!terminationSuccessful) 
+					Main.updateLogPanel("stimulationScheduler didn't shutdown in time", Color.RED);
+			} catch (InterruptedException e) {
+				terminationSuccessful = false;
+				Main.updateLogPanel("stimulationScheduler shutdown interrupted", Color.RED);
+			}
+			stimulationScheduler = null;
+		}
+		
+		if (spikesSender != null) {
+			spikesSender.close();
+			spikesSender = null;
+		}
+		
+		spikeTrainCache.close();
+		
+		return terminationSuccessful;
+	}
+	
 	/**	 
 	 * The luminance map is first converted in a spike train whose length in units 
 	 * of time is determined by the length of the stimulation process and by the size of the bins. 
-	 * Then a new sample of the spike train is sent every deltaTime ms. 
+	 * Then a new sample of the spike train is sent each time the scheduler ticks. 
 	 */
 	
-	private class InputSender implements Runnable {
-		private int stimulationIterations, // How many times should the input be sent to the network?
-		pauseIterations; // How many times should the dummy input be sent?
-		private Node inputLayer;
-		private GrayscaleCandidate input;
-		private float deltaTime;
-		
-		InputSender(float stimulationLength, float pauseLength, float deltaTime, Node inputLayer, GrayscaleCandidate input) {
-			this.deltaTime = deltaTime;
-			stimulationIterations = (int)(stimulationLength / deltaTime);
-			pauseIterations = (int)(pauseLength / deltaTime);
-			this.inputLayer = inputLayer;
-			this.input = input;
+	private class InputSender extends StimulationScheduler.Job {
+		private final SpikeTrainCache.SpikeTrain spikeTrain;
+		private InetSocketAddress endpoint; // Address and nat port of the terminal to which the input should be sent.
+		
+		// Views of the frames to be sent, each with its own position and limit.
+		private final ByteBuffer trainView, blankView;
+		
+		InputSender(float stimulationLength, float pauseLength, float deltaTime, InetSocketAddress endpoint, SpikeTrainCache.SpikeTrain spikeTrain) {
+			// After the stimulation the blank input is sent for pauseLength ms.
+			super((int)(stimulationLength / deltaTime) + (int)(pauseLength / deltaTime));
+			this.spikeTrain = spikeTrain;
+			this.endpoint = endpoint;
+			trainView = spikeTrain.frames.duplicate();
+			blankView = SpikeTrainCache.blankFrame(spikeTrain.frameBytes).duplicate();
 		}
 		
 		@Override
-		public void run() {						
-			// Socket used to send the input to the node. 
-			DatagramSocket outputSocket = socketsHashMap.get(inputLayer.id);
-		
-			// If necessary create the socket and put it in the hash map.
-			if (outputSocket == null) {
-		        try {
-		    	    outputSocket = new DatagramSocket();
-		    	    outputSocket.setTrafficClass(MuonTeacherConst.IPTOS_THROUGHPUT);   
-		        } catch (SocketException e) {
-		        	e.printStackTrace();
-		        }
-		        socketsHashMap.put(inputLayer.id, outputSocket);
-			}
-	        
-	        // Address and nat port of the terminal to which the input should be sent.
-	        InetAddress inetAddress = null;
-			try {
-				inetAddress = InetAddress.getByName(inputLayer.terminal.ip);
-			} catch (UnknownHostException e) {
-				e.printStackTrace();
+		void emitFrame(int index) {						
+			// Send the next frame of the train, which has already been encoded.
+			ByteBuffer frameView;
+			if (index < spikeTrain.numOfFrames) {
+				frameView = trainView;
+				int offset = spikeTrain.offsetOf(index);
+				frameView.limit(offset + spikeTrain.frameBytes).position(offset);
+			} else {
+				frameView = blankView;
+				frameView.limit(spikeTrain.frameBytes).position(0);
 			}
-			assert inetAddress != null;
-	        int natPort = inputLayer.terminal.natPort;
-	        
-	        // Send a new input, Poisson distributed, to the node every deltaTime
-	        // for a total of numOfIterations times. 	        	        
-			for (int index = 0; index < stimulationIterations + pauseIterations; index++) {
-				long startingTime = System.nanoTime();				
-				
-				byte[] spikeInput = index < stimulationIterations ? 
-						spikeInputCreator.createFromLuminance(input.grayscalePixels, index == 0) : 
-							spikeInputCreator.createFromLuminance(new float[MuonTeacherConst.MAX_PIC_PIXELS], false);
-		
-				try {
-					DatagramPacket spikeInputPacket = new DatagramPacket(spikeInput, spikeInput.length, inetAddress, natPort);
-					outputSocket.send(spikeInputPacket);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}		
-				
-				while((System.nanoTime() - startingTime) / MuonTeacherConst.MILLS_TO_NANO_FACTOR < deltaTime) {
-					// TODO: Use sleep instead and handle eventual interruptions.
-				}
-			}			
+			spikesSender.queue(frameView, endpoint);
+		}
+		
+		@Override
+		void completed() {
+			spikeTrainCache.release(spikeTrain);
 		}
 	}
 
@@ -3,32 +3,33 @@ import java.awt.Color;
 import overmind_server.*;
 import java.awt.List;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Random;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 public class NetworkTrainer {	
-	// Stores for each node the firing rates in response to an input that must be classified.
-	private static ConcurrentHashMap<Integer, float[]> untaggedFiringRateMap;  
+	// Resolves the sender of the spikes into the slot of the node and stores for each node the 
+	// firing rates in response to an input that must be classified.
+	private static volatile SpikesRoutingTable routingTable;  
 
 	// Number that keeps track of which kind of input is being used to stimulate the network.  
 	private static volatile int currentInputClass = MuonTeacherConst.UNDETERMINED;
@@ -53,194 +54,407 @@ public class NetworkTrainer {
 	
 	private static class MuonTeacherSpikesReceiver extends Thread {	
 		
-		private BlockingQueue<WorkerThread> threadsDispatcherQueue = new ArrayBlockingQueue<>(128);
-		boolean shutdown = false; // This shutdown should be independent of the main one. 
+		volatile boolean shutdown = false; // This shutdown should be independent of the main one. 
 		boolean isTrainingSession = false;
-		DatagramSocket socket;
 		
-		MuonTeacherSpikesReceiver(boolean isTrainingSession) {
+		// Channels bound to the application port. There is more than one only if the 
+		// receiving is sharded with SO_REUSEPORT, in which case each has its own thread.
+		volatile DatagramChannel[] channels;
+		
+		// Direct buffers into which the spikes are received. They are given back to the pool 
+		// once the firing rates have been updated. 
+		private SpikesBufferPool buffersPool = 
+				new SpikesBufferPool(MuonTeacherConst.SPIKES_BUFFERS_POOL_SIZE, MuonTeacherConst.MAX_DATA_BYTES);
+		
+		private final SpikesRoutingTable spikesRoutingTable;
+		
+		// Lane of each node, indexed by the slot of the node in the routing table. 
+		private SpikesLane[] lanes;
+		
+		/* Accounting of the frames, indexed by slot */
+		
+		private final AtomicLongArray receivedFrames;
+		private final AtomicLongArray droppedFrames; // Frames lost because the lane was full or no buffer was free.
+		private final AtomicLong unroutedFrames = new AtomicLong(0); // Frames sent by unknown addresses.
+		
+		MuonTeacherSpikesReceiver(boolean isTrainingSession, SpikesRoutingTable spikesRoutingTable) {
 			this.isTrainingSession = isTrainingSession;
+			this.spikesRoutingTable = spikesRoutingTable;
+			receivedFrames = new AtomicLongArray(spikesRoutingTable.numOfSlots());
+			droppedFrames = new AtomicLongArray(spikesRoutingTable.numOfSlots());
 		}
 		
 		/**
-		 * Inner class that implements Runnable and takes care of updating the 
-		 * firing rates of the neurons that belong to the node that has sent 
-		 * the spikesPacket.  
+		 * Update the firing rates of the neurons that belong to the node that 
+		 * has sent the spikes. 
 		 */
 		
-		private class WorkerThread implements Runnable {
-			DatagramPacket spikesPacket;
-			byte[] spikesBuffer;
-			
-			WorkerThread(DatagramPacket spikesPacket, byte[] spikesBuffer) {
-				this.spikesPacket = spikesPacket;
-				this.spikesBuffer = spikesBuffer;
-			}
-			
-			@Override
-			public void run() {
-        		if (spikesPacket != null) {     			
-        			String ip = spikesPacket.getAddress().toString().substring(1);
-        			int natPort = spikesPacket.getPort();
-        			byte[] firstHalf = ip.getBytes();
-    		    	byte secondHalf = new Integer(natPort).byteValue();
-    		    	byte[] data = new byte[firstHalf.length + 1];
-    		    	System.arraycopy(firstHalf, 0, data, 0, firstHalf.length);
-    		    	data[firstHalf.length] = secondHalf;
-    		    	
-    		    	// Implementation of the FNV-1 algorithm
-    		    	int hash = 0x811c9dc5;    	
-    		    	for (int i = 0; i < data.length; i++) {
-    		    		hash ^= (int)data[i];
-    		    		hash *= 16777619;
-    		    	}		  
-        			int numOfNeurons = VirtualLayerManager.nodesTable.get(VirtualLayerManager.physical2VirtualID.get(hash)).terminal.numOfNeurons;         		
-        		        			
-          			float[] meanFiringRates = null;
-          			
-          			if (!isTrainingSession) {
-          				// Vector of the firing rates that must be compared. 
-        				meanFiringRates = untaggedFiringRateMap.get(hash);  
-        			}           			
-        			assert meanFiringRates != null;        			
-        			
-        			// Iterating over the the neurons that produced the spike trains.
-        			for (int neuronIndex = 0; neuronIndex < numOfNeurons; neuronIndex++) { 
-        				int byteIndex = neuronIndex / 8;
-        				
-        				// If the current neuron had emitted a spike, increase the firing rate using a simple moving average algorithm. 
-        				meanFiringRates[neuronIndex] += ((spikesBuffer[byteIndex] >> (neuronIndex - byteIndex * 8)) & 1) == 1 ? 
-        						+ MuonTeacherConst.MEAN_RATE_INCREMENT * (1 - meanFiringRates[neuronIndex]) : 
-        							- MuonTeacherConst.MEAN_RATE_INCREMENT * meanFiringRates[neuronIndex];	       	
-        			}	        		
-        		}
-        		/* [End of if (spikesPacket != null)] */
-			}
-    		/* [End of run] */
+		private void updateFiringRates(int slot, ByteBuffer spikesBuffer, int numOfFrames) {   			
+			// Only the neurons that have spiked are visited, the others are decayed lazily. 
+			spikesRoutingTable.firingRates.update(slot, spikesBuffer, numOfFrames);
 		}
-		/* [End of inner class] */        		
 		
 		/**
-		 * Inner class whose job is that of creating a new thread for each node and to dispatch
-		 * the incoming Runnables from the run() method of the outer class to said threads. 
+		 * Inner class that owns the frames sent by a single node. The receiving thread
+		 * publishes the frames in the ring buffer of the lane without ever waiting, while the 
+		 * thread of the lane consumes them in order and updates the firing rates. In this way 
+		 * a slow node cannot stall the processing of the frames of the other nodes. 
+		 * 
+		 * If the lane falls behind, rather than letting it fill up and drop the newest frames, 
+		 * the oldest frames are merged into a single update: their spikes are OR-ed together and 
+		 * the rates decay as if the frames had been applied one by one. 
 		 * @author rodolfo
 		 *
 		 */
 		
-		private class ThreadsDispatcher implements Runnable {
+		private class SpikesLane extends Thread {
+			private SpikesRingBuffer ringBuffer = new SpikesRingBuffer(MuonTeacherConst.SPIKES_LANE_CAPACITY);
+			private volatile boolean consumerIsParked = false;
+			private volatile boolean laneShutdown = false;
+			private final int slot;
+			
+			// Buffer into which the stale frames are merged.
+			private final ByteBuffer coalesceBuffer = 
+					ByteBuffer.allocateDirect(MuonTeacherConst.MAX_DATA_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			
+			/* Statistics written only by the thread of the lane */
+			
+			private volatile int backlogHighWaterMark = 0;
+			private volatile long coalescedFrames = 0; // Frames that have been merged into a previous one.
+			
+			SpikesLane(int slot) {
+				super("SpikesLane-" + spikesRoutingTable.nodeOf(slot).terminal.ip);
+				this.slot = slot;
+			}
+			
+			/**
+			 * Hand a frame to the lane. Never blocks. 
+			 * @return false if the lane is full, in which case the buffer is still owned by the caller.
+			 */
+			
+			boolean publish(ByteBuffer spikesBuffer) {
+				if (!ringBuffer.offer(spikesBuffer))
+					return false;
+				
+				if (consumerIsParked)
+					LockSupport.unpark(this);
+				
+				return true;
+			}
 			
-			private ExecutorService workerThreadsExecutor = Executors.newFixedThreadPool(Main.excNodes.size());	
-			private HashMap<Integer, Future<?>> futuresMap = new HashMap<>(Main.excNodes.size());
-		
 			@Override
 			public void run() {
-				while (!shutdown) {
-					WorkerThread workerThread = null;
+				while (!laneShutdown) {
+					long position = ringBuffer.readablePosition();
+					
+					// If there is nothing to consume, park the thread until a producer wakes it up. 
+					// The timeout is needed so that the shutdown flag is checked regularly. 
+					if (position == -1) {
+						consumerIsParked = true;
+						if (ringBuffer.readablePosition() == -1)
+							LockSupport.parkNanos(this, MuonTeacherConst.LANE_PARK_NANOS);
+						consumerIsParked = false;
+						continue;
+					}
+					
+					int backlog = ringBuffer.backlog();
+					if (backlog > backlogHighWaterMark)
+						backlogHighWaterMark = backlog;
+					
+					if (backlog >= MuonTeacherConst.COALESCE_BACKLOG) {
+						coalesceFrames();
+						continue;
+					}
+					
+					ByteBuffer spikesBuffer = ringBuffer.bufferAt(position);
 					try {
-						workerThread = threadsDispatcherQueue.poll(1, TimeUnit.SECONDS); // Polling is necessary so that the operation doesn't block an eventual shutdown. 
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}	
-															
-					if (workerThread != null) {
-						int ipHashCode = (workerThread.spikesPacket.getAddress().toString().substring(1) + 
-								"/" + workerThread.spikesPacket.getPort()).hashCode();
-						Future<?> future = futuresMap.get(ipHashCode);
-						
-						// If a thread for the node corresponding to ipHashCode was created before,
-						// wait for its task to complete. 
-						if (future != null) {
-							try {
-								future.get(); // Worker thread has no blocking operation, so no need to poll. 
-							} catch (InterruptedException | ExecutionException e) {
-								e.printStackTrace();
-							}
-						} 
-
-						// Dispatch a new thread and store the associated future in the hash map. 
-						future = workerThreadsExecutor.submit(workerThread);
-						futuresMap.put(ipHashCode, future);						
+						updateFiringRates(slot, spikesBuffer, 1);
+					} finally {
+						ringBuffer.consumed(position);
+						buffersPool.release(spikesBuffer);
 					}
+				}
+				
+				// Give back to the pool the buffers of the frames that were never consumed.
+				long position;
+				while ((position = ringBuffer.readablePosition()) != -1) {
+					ByteBuffer spikesBuffer = ringBuffer.bufferAt(position);
+					ringBuffer.consumed(position);
+					buffersPool.release(spikesBuffer);
+				}
+			}
+			
+			/**
+			 * Merge up to MAX_COALESCED_FRAMES of the oldest frames and apply them in a single update.
+			 */
+			
+			private void coalesceFrames() {
+				int numOfFrames = 0, length = 0;
+				long position;
+				
+				while (numOfFrames < MuonTeacherConst.MAX_COALESCED_FRAMES && 
+						(position = ringBuffer.readablePosition()) != -1) {
+					ByteBuffer spikesBuffer = ringBuffer.bufferAt(position);
+					int frameLength = spikesBuffer.limit();
+					for (int byteIndex = 0; byteIndex < frameLength; byteIndex++) 
+						coalesceBuffer.put(byteIndex, (byte) (coalesceBuffer.get(byteIndex) | spikesBuffer.get(byteIndex)));
+					length = Math.max(length, frameLength);
 					
+					ringBuffer.consumed(position);
+					buffersPool.release(spikesBuffer);
+					numOfFrames++;
 				}
 				
-		    	/* Shutdown executor. */
+				coalesceBuffer.limit(length);
+				try {
+					updateFiringRates(slot, coalesceBuffer, numOfFrames);
+				} finally {
+					// Zero the part of the buffer that has been used, so that it's ready for the next merge.
+					for (int byteIndex = 0; byteIndex < length; byteIndex++)
+						coalesceBuffer.put(byteIndex, (byte) 0);
+					coalesceBuffer.clear();
+				}
 				
-				workerThreadsExecutor.shutdown();	    	
-		    	try {
-		    		boolean workerThreadsExecutorIsShutdown = workerThreadsExecutor.awaitTermination(1, TimeUnit.SECONDS);
-		    		if (!workerThreadsExecutorIsShutdown) {
-		    			System.out.println("ERROR: Failed to shutdown worker threads executor.");
-		    		}
-		    	} catch (InterruptedException e) {
-		    		e.printStackTrace();
-		    	}
-		    	
-		    	futuresMap.clear();
+				coalescedFrames += numOfFrames - 1;
 			}
-									
 		}
 		
 		@Override
 		public void run() {
 			super.run();			
-			
-			ExecutorService threadsDispatcherService = Executors.newSingleThreadExecutor();
-			threadsDispatcherService.execute(new ThreadsDispatcher());
 									
-	    	/* Create the datagram socket used to read the incoming spikes. */
+	    	/* Create the datagram channels used to read the incoming spikes. */
+	    	
+	    	channels = openChannels();
+	    	if (channels == null) {
+	    		Main.updateLogPanel("Spikes receiver could not be started", Color.RED);
+	    		return;
+	    	}
+	    	
+	    	// Start the lanes of the nodes.
+	    	lanes = new SpikesLane[spikesRoutingTable.numOfSlots()];
+	    	if (!isTrainingSession) {
+	    		for (int slot = 0; slot < lanes.length; slot++) {
+	    			lanes[slot] = new SpikesLane(slot);
+	    			lanes[slot].start();
+	    		}
+	    	}
+	    	
+	    	// Each additional channel is drained by its own thread, while this thread drains the first one.
+	    	Thread[] channelReaders = new Thread[channels.length - 1];
+	    	for (int i = 0; i < channelReaders.length; i++) {
+	    		final DatagramChannel readerChannel = channels[i + 1];
+	    		channelReaders[i] = new Thread(new Runnable() {
+	    			@Override
+	    			public void run() {
+	    				receiveSpikes(readerChannel);
+	    			}
+	    		}, "SpikesChannelReader-" + (i + 1));
+	    		channelReaders[i].start();
+	    	}
+	    	
+	    	receiveSpikes(channels[0]);
 	    	
-	    	socket = null;
+	    	closeChannels();
 	    	try {
-	    		socket = new DatagramSocket(MuonTeacherConst.APP_UDP_PORT);
-	    		socket.setTrafficClass(MuonTeacherConst.IPTOS_THROUGHPUT);
-	    	} catch (SocketException e) {
+	    		for (Thread channelReader : channelReaders) 
+	    			channelReader.join(1000);
+	    	} catch (InterruptedException e) {
 	    		e.printStackTrace();
 	    	}
-	    	assert socket != null;    	
 	    	
+	    	/* Shutdown the lanes. */
+	    	
+	    	for (SpikesLane spikesLane : lanes) {
+	    		if (spikesLane == null) 
+	    			continue;
+	    		spikesLane.laneShutdown = true;
+	    		LockSupport.unpark(spikesLane);
+	    	}	    	
+	    	try {
+	    		for (SpikesLane spikesLane : lanes) {
+	    			if (spikesLane == null) 
+		    			continue;
+	    			spikesLane.join(1000);
+	    			if (spikesLane.isAlive()) 
+		    			System.out.println("ERROR: Failed to shutdown " + spikesLane.getName());
+	    		}
+	    	} catch (InterruptedException e) {
+	    		e.printStackTrace();
+	    	}
+	    	
+	    	reportStatistics();
+		}
+		
+		/**
+		 * Print how many frames each node has sent and how many of them have been lost or
+		 * merged, so that the losses within the application can be told apart from those of the network. 
+		 */
+		
+		private void reportStatistics() {
+			if (isTrainingSession)
+				return;
+			
+			long totalReceived = 0, totalDropped = 0;
+			for (int slot = 0; slot < lanes.length; slot++) {
+				long received = receivedFrames.get(slot), dropped = droppedFrames.get(slot);
+				totalReceived += received;
+				totalDropped += dropped;
+				
+				System.out.println("Node " + spikesRoutingTable.nodeOf(slot).terminal.ip + 
+						": received " + received + " frames, dropped " + dropped + 
+						", coalesced " + lanes[slot].coalescedFrames + 
+						", max backlog " + lanes[slot].backlogHighWaterMark);
+			}
+			
+			if (unroutedFrames.get() != 0)
+				System.out.println("" + unroutedFrames.get() + " frames were sent by unknown addresses");
+			
+			if (totalDropped != 0)
+				Main.updateLogPanel("Dropped " + totalDropped + " of " + totalReceived + " spikes frames", Color.RED);
+		}
+		
+		/**
+		 * Open the channels bound to the application port. If more than one channel is requested
+		 * but the platform doesn't support SO_REUSEPORT, a single channel is opened. 
+		 * @return The channels, or null if not even one could be opened.
+		 */
+		
+		private DatagramChannel[] openChannels() {
+			int numOfChannels = Integer.getInteger("overmind.receiverChannels", MuonTeacherConst.RECEIVER_CHANNELS);
+			SocketOption<Boolean> reusePortOption = reusePortOption();
+			
+			if (numOfChannels > 1 && reusePortOption == null) {
+				System.out.println("SO_REUSEPORT is not supported, spikes are received on a single channel");
+				numOfChannels = 1;
+			}
+			
+			DatagramChannel[] openedChannels = new DatagramChannel[Math.max(numOfChannels, 1)];
+			
+			for (int i = 0; i < openedChannels.length; i++) {
+				try {
+					DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+					if (openedChannels.length > 1) 
+						channel.setOption(reusePortOption, true);
+					channel.setOption(StandardSocketOptions.IP_TOS, MuonTeacherConst.IPTOS_THROUGHPUT);
+					channel.setOption(StandardSocketOptions.SO_RCVBUF, MuonTeacherConst.RECEIVER_SOCKET_BUFFER);
+					channel.bind(new InetSocketAddress(MuonTeacherConst.APP_UDP_PORT));
+					openedChannels[i] = channel;
+				} catch (IOException | UnsupportedOperationException e) {
+					e.printStackTrace();
+					
+					// Keep the channels that were opened so far, if any. 
+					if (i == 0) 
+						return null;
+					return Arrays.copyOf(openedChannels, i);
+				}
+			}
+			
+			return openedChannels;
+		}
+		
+		/**
+		 * SO_REUSEPORT has been added to StandardSocketOptions only in Java 9, therefore 
+		 * look for it at runtime.
+		 * @return The option, or null if it isn't available. 
+		 */
+		
+		@SuppressWarnings("unchecked")
+		private static SocketOption<Boolean> reusePortOption() {
+			try {
+				return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+			} catch (NoSuchFieldException | IllegalAccessException e) {
+				return null;
+			}
+		}
+		
+		/**
+		 * Close the channels, which makes the threads blocked on them return.
+		 */
+		
+		void closeChannels() {
+			DatagramChannel[] openedChannels = channels;
+			if (openedChannels == null)
+				return;
+			
+			for (DatagramChannel channel : openedChannels) {
+				try {
+					if (channel.isOpen())
+						channel.close();
+		    	} catch (IOException e) {
+		    		e.printStackTrace();
+		    	}
+			}
+		}
+		
+		/**
+		 * Read the frames from the channel and hand them to the lanes of the nodes, 
+		 * until the channel is closed. 
+		 */
+		
+		private void receiveSpikes(DatagramChannel channel) {
+			// Buffer used to drain the socket when all the pooled buffers are in use. Its content is discarded.
+			ByteBuffer discardBuffer = ByteBuffer.allocateDirect(MuonTeacherConst.MAX_DATA_BYTES);
+			
 	    	while (!shutdown) {
-	    		// Receive the datagram packet with the latest spikes array.        		
-        		DatagramPacket spikesPacket = null;
-    			byte[] spikesBuffer = new byte[MuonTeacherConst.MAX_DATA_BYTES];
+	    		// Take a free buffer from the pool. If none is available the frame is 
+	    		// still read from the channel, but it is discarded. 
+	    		ByteBuffer spikesBuffer = buffersPool.acquire();
+	    		boolean bufferIsPooled = spikesBuffer != null;
+	    		if (!bufferIsPooled) {
+	    			spikesBuffer = discardBuffer;
+	    			spikesBuffer.clear();
+	    		}
+	    		
+	    		// Receive the datagram with the latest spikes array.    
+	    		InetSocketAddress senderAddress = null;
         		try {
-        			spikesPacket = new DatagramPacket(spikesBuffer, MuonTeacherConst.MAX_DATA_BYTES);
-        			socket.receive(spikesPacket);
-        			spikesBuffer = spikesPacket.getData();
+        			senderAddress = (InetSocketAddress) channel.receive(spikesBuffer);
         		} catch (IOException e) {
         			System.out.println("spikesReceiver socket is closed");
+        			if (bufferIsPooled)
+        				buffersPool.release(spikesBuffer);
         			break;
         		}
+        		spikesBuffer.flip();
+        		
+        		int slot = isTrainingSession ? SpikesRoutingTable.NO_SLOT : spikesRoutingTable.slotOf(senderAddress);
+        		
+        		if (slot == SpikesRoutingTable.NO_SLOT) {
+        			if (!isTrainingSession)
+        				unroutedFrames.incrementAndGet();
+        			if (bufferIsPooled)
+        				buffersPool.release(spikesBuffer);
+        			continue;
+        		}
+        		
+        		receivedFrames.incrementAndGet(slot);
         		        		
-        		// Create a new Runnable to do any kind of post-processing on the spikes sent
-        		// by the terminal.
-        		if (!isTrainingSession) {
-					try {
-						threadsDispatcherQueue.offer(new WorkerThread(spikesPacket, spikesBuffer), MuonTeacherConst.DELTA_TIME / 2, TimeUnit.MILLISECONDS);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}               		
+        		// Hand the frame to the lane of the node which sent it. The buffer is given 
+        		// back to the pool by the lane itself. 
+        		boolean frameDispatched = bufferIsPooled && lanes[slot].publish(spikesBuffer);
+        		
+        		if (!frameDispatched) {
+        			droppedFrames.incrementAndGet(slot);
+        			if (bufferIsPooled)
+        				buffersPool.release(spikesBuffer);
         		}
 	    	}
-	    	
-	    	/* Shutdown executor. */
-	    	
-	    	threadsDispatcherService.shutdown();	    	
-	    	try {
-	    		boolean workerThreadsExecutorIsShutdown = threadsDispatcherService.awaitTermination(2, TimeUnit.SECONDS);
-	    		if (!workerThreadsExecutorIsShutdown) {
-	    			System.out.println("ERROR: Failed to shutdown threads dispatcher executor.");
-	    		}
-	    	} catch (InterruptedException e) {
-	    		e.printStackTrace();
-	    	}
-	    	
-	    	if (!socket.isClosed())
-	    		socket.close();	    	
 		}
 		
 	}
 		
+	/**
+	 * Method called when a node has been removed from the network, so that the 
+	 * spikes of the remaining nodes keep being routed to the right slots. 
+	 */
+	
+	static void topologyChanged() {
+		SpikesRoutingTable currentRoutingTable = routingTable;
+		if (currentRoutingTable != null)
+			currentRoutingTable.rebuild(Main.excNodes);
+	}
+	
 	/**
 	 * The method checks if the chosen nodes satisfy the necessary conditions
 	 * to build a network such as the specific one needed by this app, MuonDetectorTeacher. 
@@ -593,6 +807,24 @@ public class NetworkTrainer {
 		return OPERATION_SUCCESSFUL;
 	}
 	
+	/**
+	 * Prepare the inputs for a candidate. 
+	 * If this is the training phase, all nodes receive a blank input except for 
+	 * the population corresponding to the particle type of the current candidate.
+	 * 
+	 * If this is not the training session, all the nodes receive the same picture. 
+	 */
+	
+	private static void fillInputCandidates(GrayscaleCandidate[] inputCandidates, GrayscaleCandidate candidate, 
+			GrayscaleCandidate dummyCandidate, boolean isTrainingSession) {
+		if (isTrainingSession) {
+			Arrays.fill(inputCandidates, dummyCandidate);
+			inputCandidates[candidate.lable == 1 ? 0 : 1] = candidate; // TODO: Make function to convert tag into index.
+		} else {
+			Arrays.fill(inputCandidates, candidate);   
+		}
+	}
+	
 	boolean classifyInput(boolean isTrainingSession)  {	
 		final boolean ERROR_OCCURRED = false;
 		final boolean OPERATION_SUCCESSFUL = true;				
@@ -600,7 +832,10 @@ public class NetworkTrainer {
 		
 		NetworkStimulator networkStimulator = new NetworkStimulator();		
 		
-		untaggedFiringRateMap = new ConcurrentHashMap<>(Main.excNodes.size());	
+		// How long each input is presented depends on how it's encoded into spikes.
+		final float stimulationLength = SpikeInputCreator.stimulationLength(networkStimulator.encoding);
+		
+		routingTable = new SpikesRoutingTable(Main.excNodes);	
 		
 		// Give the last terminal to be updated by setSynapticWeights a little bit of time to receive the package.
 		if (isTrainingSession) {
@@ -608,6 +843,8 @@ public class NetworkTrainer {
 				Thread.sleep(3000);
 			} catch (InterruptedException e) {
 				Main.updateLogPanel("Simulation interrupted while sleeping", Color.RED);
+				networkStimulator.shutdown();
+				routingTable = null;
 				return ERROR_OCCURRED;
 			}		
 		}
@@ -625,65 +862,22 @@ public class NetworkTrainer {
 			path = path.concat("/resources/pics/samples");
 		}
 		File samplesSetDir = new File(path);
-		ArrayList<File> sampleSetFiles = new ArrayList<>(Arrays.asList(samplesSetDir.listFiles()));
-		
-		// Delete unwanted files that may have been included. 
-		Iterator<File> iterator = sampleSetFiles.iterator();
-		while (iterator.hasNext()) {
-			File file = iterator.next();
-			if (file.getName().equals(".gitignore"))
-				iterator.remove();
-		}
-				
-		if (sampleSetFiles.size() == 0 | sampleSetFiles == null) {
-			Main.updateLogPanel("No sample found", Color.RED);
-			return false;
-		}
 		
-		ObjectInputStream objectInputStream = null; // To read the Candidate object from the file stream.
-        FileInputStream fileInputStream = null; // To read from the file.
-        
-        // Each ArrayList contains only the candidate of a certain kind 
-        ArrayList<ArrayList<GrayscaleCandidate>> candidatesCollections = 
-        		new ArrayList<ArrayList<GrayscaleCandidate>>(5); // 5 are the different classes of input.   
-        for (int i = 0; i < 5; i++)
-        	candidatesCollections.add(new ArrayList<GrayscaleCandidate>(sampleSetFiles.size() / 5)); // Here we assume that the 5 classes are equally represented. 
-        
-        // Collection of all the candidates.
-        GrayscaleCandidate[] grayscaleCandidates = new GrayscaleCandidate[sampleSetFiles.size()];        
-        
-        // Convert the files into objects and save them. 
-        for (int i = 0; i < sampleSetFiles.size(); i++) {
-        	try {
-        		fileInputStream = new FileInputStream(sampleSetFiles.get(i));
-        		objectInputStream = new ObjectInputStream(fileInputStream);
-        		GrayscaleCandidate grayscaleCandidate = (GrayscaleCandidate) objectInputStream.readObject();
-        		grayscaleCandidates[i] = grayscaleCandidate; // Unnecessary if the candidates must be ordered by class. Comment it out.        		
-        		
-        		// Add the last candidate to the ArrayList corresponding to its kind. 
-        		candidatesCollections.get(grayscaleCandidate.lable).add(grayscaleCandidate);
-        	} catch (ClassNotFoundException | IOException e) {
-        		e.printStackTrace();
-        	} 
-        }   
-                
         /*
+         * The candidates are read from the segments of the dataset while they are presented.
          * During the training session order the pictures so that pictures of different
          * types are interleaved with each other. 
          */
         
-        if (isTrainingSession) {       	
-	        for (int typeIndex = 0; typeIndex < MuonTeacherConst.NUM_OF_PARTICLES_TYPES; typeIndex++) {
-	        	int classIndex = typeIndex == 0 ? 1 : 3;
-	        	Iterator<GrayscaleCandidate> candidatesIterator = candidatesCollections.get(classIndex).iterator();
-	        	int offset = 0;
-	        	while (candidatesIterator.hasNext()) {
-	        		grayscaleCandidates[typeIndex + offset * MuonTeacherConst.NUM_OF_PARTICLES_TYPES] = 
-	        				candidatesIterator.next();
-	        		offset++;	        		
-	        	}
-	        }   
-        }
+        DatasetStream candidatesStream = DatasetStore.of(samplesSetDir).stream(isTrainingSession);
+				
+		if (!candidatesStream.hasNext()) {
+			Main.updateLogPanel("No sample found", Color.RED);
+			candidatesStream.close();
+			networkStimulator.shutdown();
+			routingTable = null;
+			return false;
+		}
     			
         /*
          * Send the retrieved grayscale candidates to the network.
@@ -699,7 +893,7 @@ public class NetworkTrainer {
         }
         
     	// Start the thread that handles the incoming spikes.
-    	MuonTeacherSpikesReceiver spikesReceiver = new MuonTeacherSpikesReceiver(isTrainingSession);
+    	MuonTeacherSpikesReceiver spikesReceiver = new MuonTeacherSpikesReceiver(isTrainingSession, routingTable);
     	spikesReceiver.start();      
     	
     	float rightGuess = 0.0f, totalGuess = 0.0f, deltaFactor = 1.0f;
@@ -709,202 +903,196 @@ public class NetworkTrainer {
     	GrayscaleCandidate dummyCandidate = // A Candidate object which contains a picture completely blank.
     			new GrayscaleCandidate(dummyInput, MuonTeacherConst.UNDETERMINED);
     	
-    	for (GrayscaleCandidate candidate : grayscaleCandidates) {
-        	int allowedIterations = MuonTeacherConst.MIN_ITERATIONS;
-    		boolean sampleAnalysisFinished = false;  
+    	boolean terminationSuccessful = true;
+    	
+    	// The threads and the channels of the session are shut down also when the analysis stops because of an error.
+    	try {
+	    	GrayscaleCandidate nextCandidate = candidatesStream.next();
+	    	while (nextCandidate != null) {
+	    		// Stop presenting the candidates, and prefetching their trains, once the analysis is interrupted.
+	    		if (analysisInterrupt.get() || shutdown)
+	    			break;
     		
-    		/*
-    		 * Prepare the inputs for this iteration. 
-    		 * If this is the training phase, all nodes receive a blank input except for 
-    		 * the population corresponding to the particle type of the current candidate.
-    		 * 
-    		 * If this is not the training session, all the nodes receive the same picture. 
-    		 */
+	    		GrayscaleCandidate candidate = nextCandidate;
+	    		nextCandidate = candidatesStream.hasNext() ? candidatesStream.next() : null;
+	        	int allowedIterations = MuonTeacherConst.MIN_ITERATIONS;
+	    		boolean sampleAnalysisFinished = false;  
     		
-    		if (isTrainingSession) {
-    			Arrays.fill(inputCandidates, dummyCandidate);
-    			inputCandidates[candidate.lable == 1 ? 0 : 1] = candidate; // TODO: Make function to convert tag into index.
-    		} else {
-    			Arrays.fill(inputCandidates, candidate);   
-    		}
+	    		// Prepare the inputs for this iteration. 
+	    		fillInputCandidates(inputCandidates, candidate, dummyCandidate, isTrainingSession);
     		
-    		for (Node excNode : Main.excNodes) { 
-    			// If this is not a training session create additional arrays for each node to store 
-	    		// the firing rates of their neurons in response to the samples. 
-    			if (!isTrainingSession) {
-    				untaggedFiringRateMap.put(excNode.id, new float[excNode.terminal.numOfNeurons]);
-    			}
-    		}
+	    		// Let the spike trains of the next candidate be encoded while this one is presented.
+	    		if (nextCandidate != null) {
+	    			GrayscaleCandidate[] nextInputCandidates = new GrayscaleCandidate[inputCandidates.length];
+	    			fillInputCandidates(nextInputCandidates, nextCandidate, dummyCandidate, isTrainingSession);
+	    			networkStimulator.prefetch(nextInputCandidates, stimulationLength, MuonTeacherConst.DELTA_TIME);
+	    		}
+    		
+	    		// If this is not a training session clear the firing rates of the neurons 
+	    		// of each node, which will store the response to the new sample. 
+	    		if (!isTrainingSession) {
+	    			routingTable.firingRates.reset();
+	    		}
     		    		
-    		int iteration = 0, // Times the same input has been presented to the network. 
-    				guessedClass = -1; 
-    		double finalProbability = 0.0f; // Probability associated with the guessed class.    
-    		double[] meanProbabilities = new double[MuonTeacherConst.NUM_OF_PARTICLES_TYPES]; // Temporary probs.
-    		int[] meanSamples = new int[MuonTeacherConst.NUM_OF_PARTICLES_TYPES]; // Number of samples used to average the temp probs. 
-        	long postprocessingStartTime = 0; // Time at which the post-processing start.    		    
+	    		int iteration = 0, // Times the same input has been presented to the network. 
+	    				guessedClass = -1; 
+	    		double finalProbability = 0.0f; // Probability associated with the guessed class.    
+	    		double[] meanProbabilities = new double[MuonTeacherConst.NUM_OF_PARTICLES_TYPES]; // Temporary probs.
+	    		int[] meanSamples = new int[MuonTeacherConst.NUM_OF_PARTICLES_TYPES]; // Number of samples used to average the temp probs. 
+	        	long postprocessingStartTime = 0; // Time at which the post-processing start.    		    
     		
-    		// Break the loop if the analysis has been interrupted or the application shutdown or 
-    		// the sample has been thoroughly analyzed. 
-        	while ( !analysisInterrupt.get() & !shutdown & !sampleAnalysisFinished) {
-        		currentInputClass = candidate.lable;   		
-        		iteration++; 
+	    		// Break the loop if the analysis has been interrupted or the application shutdown or 
+	    		// the sample has been thoroughly analyzed. 
+	        	while ( !analysisInterrupt.get() & !shutdown & !sampleAnalysisFinished) {
+	        		currentInputClass = candidate.lable;   		
+	        		iteration++; 
 	        	
-	        	long tmpTime = postprocessingStartTime != 0 ?  
-	        		(System.nanoTime() - postprocessingStartTime) / MuonTeacherConst.MILLS_TO_NANO_FACTOR : 0;
-	        	postprocessingTime = tmpTime < MuonTeacherConst.DELTA_TIME ? MuonTeacherConst.DELTA_TIME  : tmpTime;
+		        	long tmpTime = postprocessingStartTime != 0 ?  
+		        		(System.nanoTime() - postprocessingStartTime) / MuonTeacherConst.MILLS_TO_NANO_FACTOR : 0;
+		        	postprocessingTime = tmpTime < MuonTeacherConst.DELTA_TIME ? MuonTeacherConst.DELTA_TIME  : tmpTime;
         		
-	        	float pauseLength = isTrainingSession ? 0 : MuonTeacherConst.PAUSE_LENGTH;
+		        	float pauseLength = isTrainingSession ? 0 : MuonTeacherConst.PAUSE_LENGTH;
+		        	
+		        	/*
+		        	 * During the training the tracks and the spots are presented only once. Otherwise the 
+		        	 * candidate is presented again until it has been presented allowedIterations times, 
+		        	 * and after that only if it's not classified, which can't be known in advance unless 
+		        	 * the iterations can't be increased any more. 
+		        	 */
+		        	
+		        	boolean presentedAgain = isTrainingSession ? 
+		        			currentInputClass != MuonTeacherConst.TRACK & currentInputClass != MuonTeacherConst.SPOT : 
+		        			iteration < allowedIterations | allowedIterations < MuonTeacherConst.MAX_ITERATIONS;
 	        	
-	        	// Stimulate the input layers with the candidate grayscale map.
-	        	// TODO: Handle disconnection of node during stimulation.
-        		ArrayList<Future<?>> inputSenderFutures = 
-	        			networkStimulator.stimulateWithLuminanceMap(
-	        					MuonTeacherConst.STIMULATION_LENGTH, pauseLength, MuonTeacherConst.DELTA_TIME, inputLayers, inputCandidates);  
-	        	if (inputSenderFutures == null) {
-	        		Main.updateLogPanel("Error occurred during the stimulation", Color.RED);
-	        		return ERROR_OCCURRED;
-	        	}        	
+		        	// Stimulate the input layers with the candidate grayscale map.
+		        	// TODO: Handle disconnection of node during stimulation.
+	        		ArrayList<Future<?>> inputSenderFutures = 
+		        			networkStimulator.stimulateWithLuminanceMap(
+		        					stimulationLength, pauseLength, MuonTeacherConst.DELTA_TIME, inputLayers, inputCandidates, presentedAgain);  
+		        	if (inputSenderFutures == null) {
+		        		Main.updateLogPanel("Error occurred during the stimulation", Color.RED);
+		        		return ERROR_OCCURRED;
+		        	}        	
 	        	  						        	
-	        	boolean trainingDone = false, sampleClassified = false; // Flags that govern the flow. 
+		        	boolean trainingDone = false, sampleClassified = false; // Flags that govern the flow. 
 	        	
-	        	/*
-	        	 * Put this thread to sleep while the input is being sent but wake up before all the inputs
-	        	 * have been sent so that there is still time to do a little bit of post-processing. 
-	        	 */
+		        	/*
+		        	 * Put this thread to sleep while the input is being sent but wake up before all the inputs
+		        	 * have been sent so that there is still time to do a little bit of post-processing. 
+		        	 */
 	        	
-	        	try {
-					Thread.sleep((long)(MuonTeacherConst.PAUSE_LENGTH + MuonTeacherConst.STIMULATION_LENGTH) - postprocessingTime);
-				} catch (InterruptedException e) {
-					Main.updateLogPanel("Stimulation interrupted during pause", Color.RED);
-					return ERROR_OCCURRED;
-				}  			
+		        	try {
+						Thread.sleep(Math.max((long)(MuonTeacherConst.PAUSE_LENGTH + stimulationLength) - postprocessingTime, 0));
+					} catch (InterruptedException e) {
+						Main.updateLogPanel("Stimulation interrupted during pause", Color.RED);
+						return ERROR_OCCURRED;
+					}  			
 					        		        	
-	        	postprocessingStartTime = System.nanoTime();
+		        	postprocessingStartTime = System.nanoTime();
 	        	
-	        	if (!isTrainingSession & !shutdown) {
-	        		// Get the firing rates vector of all the nodes, 
-	        		// each of which corresponds to a different type of particle.
-	        		float[][] untaggedFiringRates = new float[MuonTeacherConst.NUM_OF_PARTICLES_TYPES][];
-	        		for (int typeIndex = 0; typeIndex < MuonTeacherConst.NUM_OF_PARTICLES_TYPES; typeIndex++) {
-	        			untaggedFiringRates[typeIndex] = untaggedFiringRateMap.get(Main.excNodes.get(typeIndex).id);
-	        		}
+		        	if (!isTrainingSession & !shutdown) {
+		        		// Get the firing rates vector of all the nodes, 
+		        		// each of which corresponds to a different type of particle.
+		        		FiringRateMatrix untaggedFiringRates = routingTable.firingRates;
    					
-	        		/*
-	        		 * Compute which of the node presents the highest activity.
-	        		 */
+		        		/*
+		        		 * Compute which of the node presents the highest activity. The lengths of the 
+		        		 * rates vectors are kept up to date by the receiver, so the cost doesn't depend 
+		        		 * on the number of neurons. 
+		        		 */
 	        		
-	        		int highestRateNodeNumber = 0;
-    				double highestRateVectorLength = 0.0f, totalLength = 0.0f;    	
-    				double[] vectorLengths = new double[MuonTeacherConst.NUM_OF_PARTICLES_TYPES];
+		        		int highestRateNodeNumber = 0;
+	    				double highestRateVectorLength = 0.0f, totalLength = 0.0f;    	
+	    				double[] vectorLengths = new double[MuonTeacherConst.NUM_OF_PARTICLES_TYPES];
     				
-					for (int typeIndex = 0; typeIndex < MuonTeacherConst.NUM_OF_PARTICLES_TYPES; typeIndex++) {
-						int numOfNeurons = Main.excNodes.get(typeIndex).terminal.numOfNeurons;
-						for (int neuronIndex = 0; neuronIndex < numOfNeurons; neuronIndex++) {
-    						vectorLengths[typeIndex] += Math.pow(untaggedFiringRates[typeIndex][neuronIndex], 2); 
-						}
-						vectorLengths[typeIndex] = Math.sqrt(vectorLengths[typeIndex]);
-						totalLength += vectorLengths[typeIndex];
-						if (vectorLengths[typeIndex] > highestRateVectorLength) {
-							highestRateVectorLength = vectorLengths[typeIndex];
-							highestRateNodeNumber = typeIndex;
-						}
-    				}    			
+						for (int typeIndex = 0; typeIndex < MuonTeacherConst.NUM_OF_PARTICLES_TYPES; typeIndex++) {
+							vectorLengths[typeIndex] = untaggedFiringRates.vectorLength(typeIndex);
+							totalLength += vectorLengths[typeIndex];
+							if (vectorLengths[typeIndex] > highestRateVectorLength) {
+								highestRateVectorLength = vectorLengths[typeIndex];
+								highestRateNodeNumber = typeIndex;
+							}
+	    				}    			
     				
-					// The probability with which the guess has been made. 
-    				meanProbabilities[highestRateNodeNumber] += highestRateVectorLength / totalLength;
-    				meanSamples[highestRateNodeNumber]++; // How many times the same class has been associated with the input. 
+						// The probability with which the guess has been made. 
+	    				meanProbabilities[highestRateNodeNumber] += highestRateVectorLength / totalLength;
+	    				meanSamples[highestRateNodeNumber]++; // How many times the same class has been associated with the input. 
 					
-    				/*
-    				 * Compute which class best describes the current input and the probability related
-    				 * to the guess. 
-    				 */
+	    				/*
+	    				 * Compute which class best describes the current input and the probability related
+	    				 * to the guess. 
+	    				 */
     				
-    				if (iteration >= allowedIterations) {
-    					double maxProbability = meanProbabilities[0];
-    					int tentativeClass = 1;
+	    				if (iteration >= allowedIterations) {
+	    					double maxProbability = meanProbabilities[0];
+	    					int tentativeClass = 1;
     					
-    					// Compute which probability is the higher among the different classes. 
-    					for (int typeIndex = 0; typeIndex < MuonTeacherConst.NUM_OF_PARTICLES_TYPES; typeIndex++) {
-    						if (meanProbabilities[typeIndex] >= maxProbability) {
-    							maxProbability = meanProbabilities[typeIndex];
-    							tentativeClass = typeIndex;
-    						}
-    					}
+	    					// Compute which probability is the higher among the different classes. 
+	    					for (int typeIndex = 0; typeIndex < MuonTeacherConst.NUM_OF_PARTICLES_TYPES; typeIndex++) {
+	    						if (meanProbabilities[typeIndex] >= maxProbability) {
+	    							maxProbability = meanProbabilities[typeIndex];
+	    							tentativeClass = typeIndex;
+	    						}
+	    					}
     					
-    					maxProbability /= meanSamples[tentativeClass];
+	    					maxProbability /= meanSamples[tentativeClass];
     	    					
-    					if (maxProbability > 0.6f | allowedIterations >= MuonTeacherConst.MAX_ITERATIONS) {
-    						sampleClassified = true;
-	    					finalProbability = maxProbability;
-	    					guessedClass = tentativeClass;
-    					} else {
-    						allowedIterations += MuonTeacherConst.ITERATION_INCREMENT;
-    					}    					
-    				}
-	        	} else if (!shutdown) {			        	
-		        	trainingDone = (currentInputClass == MuonTeacherConst.TRACK & iteration == 1) | 
-		        			(currentInputClass == MuonTeacherConst.SPOT & iteration == 1);
+	    					if (maxProbability > 0.6f | allowedIterations >= MuonTeacherConst.MAX_ITERATIONS) {
+	    						sampleClassified = true;
+		    					finalProbability = maxProbability;
+		    					guessedClass = tentativeClass;
+	    					} else {
+	    						allowedIterations += MuonTeacherConst.ITERATION_INCREMENT;
+	    					}    					
+	    				}
+		        	} else if (!shutdown) {			        	
+			        	trainingDone = (currentInputClass == MuonTeacherConst.TRACK & iteration == 1) | 
+			        			(currentInputClass == MuonTeacherConst.SPOT & iteration == 1);
 		        		        			        			        	
-		        	System.out.println("Class " + currentInputClass);   
-	        	}	 
+			        	System.out.println("Class " + currentInputClass);   
+		        	}	 
 	        		        	
-	        	// Wait for all the InputSender threads to finish by retrieving their Future objects.		
-	    		try {
-	    			for (Future<?> inputSenderFuture : inputSenderFutures)
-	    				inputSenderFuture.get();
-	    		} catch (InterruptedException | ExecutionException e) {
-	    			e.printStackTrace();
-	    			return false;
-	    		}		        	
+		        	// Wait for all the InputSender threads to finish by retrieving their Future objects.		
+		    		try {
+		    			for (Future<?> inputSenderFuture : inputSenderFutures)
+		    				inputSenderFuture.get();
+		    		} catch (InterruptedException | ExecutionException e) {
+		    			e.printStackTrace();
+		    			return false;
+		    		}		        	
 	        	
-	        	sampleAnalysisFinished = sampleClassified | trainingDone;
-    		}
-        	/* [End of while ( !analysisInterrupt.get() & !shutdown & !sampleAnalysisFinished)] */
+		        	sampleAnalysisFinished = sampleClassified | trainingDone;
+	    		}
+	        	/* [End of while ( !analysisInterrupt.get() & !shutdown & !sampleAnalysisFinished)] */
         	
-        	totalGuess++;
-        	guessedClass = guessedClass == 0 ? 1 : 3; // TODO: Make function that convert tag in type class.
-        	if (guessedClass == currentInputClass) {
-        		rightGuess++;        		
-        	}
+	        	totalGuess++;
+	        	guessedClass = guessedClass == 0 ? 1 : 3; // TODO: Make function that convert tag in type class.
+	        	if (guessedClass == currentInputClass) {
+	        		rightGuess++;        		
+	        	}
         	
-        	if (!isTrainingSession)
-        		System.out.println("Real class: " + candidate.lable + " Tentative class: " + guessedClass 
-        				+ " finalProbability " + finalProbability + " Success rate: " + (rightGuess / totalGuess));
-        }   
-    	
-    	/* Shutdown operations */    	  
-    	
-    	// Shutdown worker threads
-    	boolean terminationSuccessful = true;
-    	
-    	spikesReceiver.shutdown = true;
-    	if (spikesReceiver.socket != null)
-    		spikesReceiver.socket.close();
-    	try {
-    		spikesReceiver.join(100);
-    	} catch (InterruptedException e) {
-    		terminationSuccessful = false;
-			Main.updateLogPanel("spikesReceiver shutdown interrupted", Color.RED);
-    	}
-    	
-    	networkStimulator.inputSenderService.shutdown();
-    	try {
-			terminationSuccessful &= networkStimulator.inputSenderService.awaitTermination(100, TimeUnit.MILLISECONDS);
-			if (!terminationSuccessful) {
-				Main.updateLogPanel("inputSenderService didn't shutdown in time", Color.RED);
-			}
-		} catch (InterruptedException e) {
-			terminationSuccessful = false;
-			Main.updateLogPanel("inputSenderService shutdown interrupted", Color.RED);
-		}
+	        	if (!isTrainingSession)
+	        		System.out.println("Real class: " + candidate.lable + " Tentative class: " + guessedClass 
+	        				+ " finalProbability " + finalProbability + " Success rate: " + (rightGuess / totalGuess));
+	        }   
+    	} finally {
+    		candidatesStream.close();
     	
-    	// Clear hash maps.
-    	Collection<DatagramSocket> socketsCollection = networkStimulator.socketsHashMap.values();
-    	for (DatagramSocket oldSocket : socketsCollection) {
-    		oldSocket.close();
+	    	/* Shutdown operations */    	  
+	    	
+	    	// Shutdown worker threads
+	    	spikesReceiver.shutdown = true;
+	    	spikesReceiver.closeChannels();
+	    	try {
+	    		spikesReceiver.join(100);
+	    	} catch (InterruptedException e) {
+	    		terminationSuccessful = false;
+				Main.updateLogPanel("spikesReceiver shutdown interrupted", Color.RED);
+	    	}
+	    	
+	    	terminationSuccessful &= networkStimulator.shutdown();
+	    	routingTable = null;   
     	}
-    	networkStimulator.socketsHashMap.clear();    	
-    	untaggedFiringRateMap.clear();   
           
 		return terminationSuccessful;				
 	}
@@ -0,0 +1,281 @@
+package overmind_app;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+
+/**
+ * Converts in the background the bitmaps of the database into luminance maps. The bitmaps are
+ * decoded and converted by a bounded pool of workers, while a single writer saves the maps,
+ * deletes the bitmaps and records their names in a manifest. If the import is interrupted, the
+ * bitmaps listed in the manifest are not converted again when it's restarted. The bitmaps whose
+ * content is already in the ContentIndex are deleted without being converted.
+ * @author rodolfo
+ *
+ */
+
+public class PicsImporter extends Thread {
+
+	volatile boolean shutdown = false;
+
+	private final File databaseDirectory = new File(new File("").getAbsolutePath().concat("/resources/pics/database"));
+	private final File manifestFile = new File(new File("").getAbsolutePath().concat("/resources/pics/import_manifest"));
+
+	/**
+	 * Luminance map of a bitmap, waiting to be saved.
+	 */
+
+	private static class ConvertedPic {
+		final File pic;
+		final GrayscaleCandidate grayscaleCandidate;
+		final long contentHash;
+
+		ConvertedPic(File pic, GrayscaleCandidate grayscaleCandidate, long contentHash) {
+			this.pic = pic;
+			this.grayscaleCandidate = grayscaleCandidate;
+			this.contentHash = contentHash;
+		}
+	}
+
+	// Tells the writer that all the bitmaps have been converted.
+	private static final ConvertedPic LAST_PIC = new ConvertedPic(null, null, 0);
+
+	private final BlockingQueue<ConvertedPic> convertedPics = new ArrayBlockingQueue<>(MuonTeacherConst.IMPORT_QUEUE_CAPACITY);
+	private final AtomicInteger failedPics = new AtomicInteger(0);
+	private final AtomicInteger duplicatePics = new AtomicInteger(0);
+	private final ContentIndex contentIndex = ContentIndex.shared();
+
+	PicsImporter() {
+		super("PicsImporter");
+		setDaemon(true);
+	}
+
+	@Override
+	public void run() {
+		File[] databasePics = databaseDirectory.listFiles();
+
+		if (databasePics == null || databasePics.length == 0) {
+			Main.updateLogPanel("No pics in the database", Color.RED);
+			return;
+		}
+
+		/*
+		 * The bitmaps listed in the manifest have already been saved, but the import
+		 * was interrupted before they could be deleted.
+		 */
+
+		HashSet<String> importedPics = readManifest();
+		int numOfPics = 0, numOfSkippedPics = 0;
+		for (File pic : databasePics) {
+			if (importedPics.contains(pic.getName())) {
+				pic.delete();
+				numOfSkippedPics++;
+			} else {
+				databasePics[numOfPics++] = pic;
+			}
+		}
+
+		if (numOfSkippedPics != 0)
+			System.out.println("PicsImporter: " + numOfSkippedPics + " pics had already been converted");
+
+		Main.updateLogPanel("Converting " + numOfPics + " pics...", Color.BLACK);
+
+		/*
+		 * When the queue of the workers is full the bitmaps are decoded by this thread,
+		 * so that no more than a few of them are in memory at the same time.
+		 */
+
+		ThreadPoolExecutor decoderService = new ThreadPoolExecutor(MuonTeacherConst.IMPORT_DECODE_THREADS,
+				MuonTeacherConst.IMPORT_DECODE_THREADS, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(MuonTeacherConst.IMPORT_QUEUE_CAPACITY),
+				new ThreadPoolExecutor.CallerRunsPolicy());
+
+		Thread writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writePics();
+			}
+		}, "PicsWriter");
+		writerThread.start();
+
+		for (int index = 0; index < numOfPics && !shutdown; index++) {
+			final File pic = databasePics[index];
+			decoderService.execute(new Runnable() {
+				@Override
+				public void run() {
+					convertPic(pic);
+				}
+			});
+		}
+
+		decoderService.shutdown();
+
+		try {
+			while (!decoderService.awaitTermination(1, TimeUnit.SECONDS)) {
+				if (shutdown)
+					decoderService.shutdownNow();
+			}
+			convertedPics.put(LAST_PIC);
+			writerThread.join();
+		} catch (InterruptedException e) {
+			decoderService.shutdownNow();
+			writerThread.interrupt();
+			return;
+		}
+	}
+
+	/**
+	 * Decode the bitmap and compute its luminance map. Run by the workers.
+	 */
+
+	private void convertPic(File pic) {
+		if (shutdown)
+			return;
+
+		String fileName = pic.getName(); // The name of the file containing the tag.
+		int tag; // The tag to be associated with the luminance map.
+
+		// Retreive the tag to associate with the map in the GrayscaleCandidate object from the file name.
+		if (fileName.contains("undetermined"))
+			tag = MuonTeacherConst.UNDETERMINED;
+		else if (fileName.contains("track"))
+			tag = MuonTeacherConst.TRACK;
+		else if (fileName.contains("spot"))
+			tag = MuonTeacherConst.SPOT;
+		else if (fileName.contains("nois"))
+			tag = MuonTeacherConst.NOISE;
+		else {
+			System.out.println("" + fileName + " is not a valid file name.");
+			failedPics.incrementAndGet();
+			return;
+		}
+
+		// Read the bitmap.
+		BufferedImage bitmap = null;
+		try {
+			bitmap = ImageIO.read(pic.getAbsoluteFile());
+		} catch (IOException e) {
+			System.out.println(e);
+		}
+
+		if (bitmap == null) {
+			System.out.println("ERROR: " + fileName + " could not be decoded");
+			failedPics.incrementAndGet();
+			return;
+		}
+
+		// Extract the RGB data.
+		int[] pixels = CandidatePicsReceiver.ConvertGrayscale.pixelsOf(bitmap);
+
+		// A pic which has already been converted is deleted without converting it again.
+		long contentHash = ContentIndex.hashOf(pixels, bitmap.getWidth());
+		if (contentIndex != null && !contentIndex.claim(contentHash)) {
+			duplicatePics.incrementAndGet();
+			pic.delete();
+			return;
+		}
+
+		// Compute the map.
+		GrayscaleCandidate grayscaleCandidate =
+				new CandidatePicsReceiver.ConvertGrayscale(pixels, bitmap.getWidth(), tag, fileName).convert();
+
+		try {
+			convertedPics.put(new ConvertedPic(pic, grayscaleCandidate, contentHash));
+		} catch (InterruptedException e) {
+			if (contentIndex != null)
+				contentIndex.release(contentHash);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Save the maps as they are converted. Run by a single thread, so that the manifest
+	 * is written in order.
+	 */
+
+	private void writePics() {
+		PrintWriter manifestWriter = null;
+		try {
+			manifestWriter = new PrintWriter(new FileWriter(manifestFile, true));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		int numOfConvertedPics = 0;
+		boolean importIsComplete = false;
+
+		try {
+			while (true) {
+				ConvertedPic convertedPic = convertedPics.take();
+				if (convertedPic == LAST_PIC) {
+					importIsComplete = !shutdown;
+					break;
+				}
+
+				if (!CandidatePicsReceiver.ConvertGrayscale.save(convertedPic.grayscaleCandidate)) {
+					if (contentIndex != null)
+						contentIndex.release(convertedPic.contentHash);
+					failedPics.incrementAndGet();
+					continue;
+				}
+				if (contentIndex != null)
+					contentIndex.commit(convertedPic.contentHash);
+
+				// Record the bitmap before deleting it, so that it's not converted twice if the import is interrupted.
+				if (manifestWriter != null) {
+					manifestWriter.println(convertedPic.pic.getName());
+					manifestWriter.flush();
+				}
+				convertedPic.pic.delete();
+
+				numOfConvertedPics++;
+				if (numOfConvertedPics % MuonTeacherConst.IMPORT_PROGRESS_STEP == 0)
+					Main.updateLogPanel("" + numOfConvertedPics + " pics converted...", Color.BLACK);
+			}
+		} catch (InterruptedException e) {
+			System.out.println("PicsImporter: import interrupted");
+		}
+
+		if (manifestWriter != null)
+			manifestWriter.close();
+
+		// All the bitmaps of the manifest have been deleted, hence it's no longer needed.
+		if (importIsComplete)
+			manifestFile.delete();
+
+		if (duplicatePics.get() != 0)
+			System.out.println("PicsImporter: " + duplicatePics.get() + " duplicate pics discarded");
+
+		if (failedPics.get() != 0)
+			Main.updateLogPanel("" + numOfConvertedPics + " pics converted, " + failedPics.get() + " failed", Color.RED);
+		else
+			Main.updateLogPanel("" + numOfConvertedPics + " pics converted", Color.BLACK);
+	}
+
+	private HashSet<String> readManifest() {
+		HashSet<String> importedPics = new HashSet<>();
+		if (!manifestFile.exists())
+			return importedPics;
+
+		try (BufferedReader manifestReader = new BufferedReader(new FileReader(manifestFile))) {
+			String fileName;
+			while ((fileName = manifestReader.readLine()) != null)
+				importedPics.add(fileName);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return importedPics;
+	}
+}
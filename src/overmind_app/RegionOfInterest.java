@@ -0,0 +1,78 @@
+package overmind_app;
+
+/**
+ * Reduces a luminance map of any size to the fixed grid of PIC_SIDE x PIC_SIDE pixels which
+ * is presented to the network. The bounding box of the trace is located, enlarged to a square
+ * that is at least as large as the grid, and resampled into the grid. Each cell of the grid
+ * takes the brightest pixel of the area it covers, so that traces one pixel wide aren't dimmed.
+ * @author rodolfo
+ *
+ */
+
+public class RegionOfInterest {
+
+	/**
+	 * @return A map of MAX_PIC_PIXELS pixels containing the trace of the given map.
+	 */
+
+	static float[] cropAndResample(float[] luminance, int width, int height) {
+		final int GRID_SIDE = MuonTeacherConst.PIC_SIDE;
+		float[] grid = new float[GRID_SIDE * GRID_SIDE];
+
+		/* Locate the bounding box of the lit pixels */
+
+		int minRow = height, maxRow = -1, minColumn = width, maxColumn = -1;
+		for (int row = 0; row < height; row++) {
+			for (int column = 0; column < width; column++) {
+				if (luminance[row * width + column] != 0.0f) {
+					minRow = Math.min(minRow, row);
+					maxRow = Math.max(maxRow, row);
+					minColumn = Math.min(minColumn, column);
+					maxColumn = Math.max(maxColumn, column);
+				}
+			}
+		}
+
+		// A blank picture stays blank.
+		if (maxRow == -1)
+			return grid;
+
+		/*
+		 * Enlarge the box to a square centered on the trace, so that the aspect ratio is preserved.
+		 * The square is never smaller than the grid, hence small traces are not magnified. The part
+		 * of the square which falls outside the picture is black.
+		 */
+
+		int side = Math.max(Math.max(maxRow - minRow + 1, maxColumn - minColumn + 1), GRID_SIDE);
+		int firstRow = (minRow + maxRow + 1 - side) / 2;
+		int firstColumn = (minColumn + maxColumn + 1 - side) / 2;
+
+		// If the whole square fits in the picture, keep it inside rather than centered.
+		if (side <= height)
+			firstRow = Math.min(Math.max(firstRow, 0), height - side);
+		if (side <= width)
+			firstColumn = Math.min(Math.max(firstColumn, 0), width - side);
+
+		/* Resample the square into the grid */
+
+		for (int gridRow = 0; gridRow < GRID_SIDE; gridRow++) {
+			int rowFrom = firstRow + gridRow * side / GRID_SIDE;
+			int rowTo = firstRow + Math.max((gridRow + 1) * side / GRID_SIDE, gridRow * side / GRID_SIDE + 1);
+
+			for (int gridColumn = 0; gridColumn < GRID_SIDE; gridColumn++) {
+				int columnFrom = firstColumn + gridColumn * side / GRID_SIDE;
+				int columnTo = firstColumn + Math.max((gridColumn + 1) * side / GRID_SIDE, gridColumn * side / GRID_SIDE + 1);
+
+				float brightest = 0.0f;
+				for (int row = Math.max(rowFrom, 0); row < Math.min(rowTo, height); row++) {
+					for (int column = Math.max(columnFrom, 0); column < Math.min(columnTo, width); column++)
+						brightest = Math.max(brightest, luminance[row * width + column]);
+				}
+
+				grid[gridRow * GRID_SIDE + gridColumn] = brightest;
+			}
+		}
+
+		return grid;
+	}
+}
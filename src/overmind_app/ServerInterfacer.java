@@ -1,4 +1,6 @@
 package overmind_app;
+import javax.swing.DefaultListModel;
+import javax.swing.SwingUtilities;
 import overmind_server.*;
 
 public class ServerInterfacer extends Thread {
@@ -42,8 +44,31 @@ public class ServerInterfacer extends Thread {
 					Main.inhNodes.remove(removedNodeObject.removedNode);
 					Main.inhNodesListModel.removeElement(removedNodeObject.removedNode.terminal.ip);					
 				}		
+			} else {
+				
+				/*
+				 * The shadow node takes the place of the removed one in the lists, so that 
+				 * its spikes are routed to the slot of the removed node. 
+				 */
+				
+				Node removedNode = removedNodeObject.removedNode, shadowNode = removedNodeObject.shadowNode;
+				
+				int nodeIndex = Main.excNodes.indexOf(removedNode);
+				if (nodeIndex != -1) {
+					Main.excNodes.set(nodeIndex, shadowNode);
+					replaceListElement(Main.excNodesListModel, nodeIndex, shadowNode.terminal.ip);
+				}
+				
+				nodeIndex = Main.inhNodes.indexOf(removedNode);
+				if (nodeIndex != -1) {
+					Main.inhNodes.set(nodeIndex, shadowNode);
+					replaceListElement(Main.inhNodesListModel, nodeIndex, shadowNode.terminal.ip);
+				}
 			}
 			
+			// Resolve again the addresses from which the spikes of the exc. nodes are received, giving a slot to the shadow node.
+			NetworkTrainer.topologyChanged();
+			
 			// If the exc. nodes and inh. nodes list are empty, put back the default text in them. 			
 			if (Main.excNodesListModel.isEmpty())
 				Main.excNodesListModel.addElement("No excitatory node");			
@@ -55,5 +80,20 @@ public class ServerInterfacer extends Thread {
 		}
 				
 	}
+	
+	/**
+	 * Show the ip of the node which has taken the place of the one at the given index of the list. 
+	 * The model is changed by the event dispatch thread, and the order of the list is preserved. 
+	 */
+	
+	private static void replaceListElement(final DefaultListModel<String> listModel, final int index, final String ip) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if (index < listModel.size())
+					listModel.set(index, ip);
+			}
+		});
+	}
 
 }
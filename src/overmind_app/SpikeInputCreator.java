@@ -1,74 +1,277 @@
 package overmind_app;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.SplittableRandom;
 
 /**
  * Class containing methods that pertain to the input made of spikes which is sent
- * to the network. 
+ * to the network.
  * @author rodolfo
  *
  */
 
 public class SpikeInputCreator {
-	float MAX_LUMINANCE = 63.75f;		
+	float MAX_LUMINANCE = 63.75f;
 	
+	/* Schemes used to encode the luminance into spike trains */
+	
+	static final int RATE_CODING = 0; // Each pixel spikes at every frame with probability equal to its luminance.
+	static final int LATENCY_CODING = 1; // Each pixel spikes once, the brighter the earlier.
+	static final int RANK_ORDER_CODING = 2; // The pixels spike once, a few per frame, in order of decreasing luminance.
+	static final int BURST_CODING = 3; // Each pixel emits a burst at the start, whose length grows with the luminance.
+	
+	// Encoding in use. Can be chosen when the application is launched with -Dovermind.spikeEncoding=rate|latency|rank|burst
+	static volatile int encoding = parseEncoding(System.getProperty("overmind.spikeEncoding", "rate"));
+
 	private int[] waitARP = new int[MuonTeacherConst.MAX_PIC_PIXELS]; // Array holding counter indexes that account for the absolute refractory period.
+
+	/*
+	 * Each thread draws the random numbers from its own generator, split from a common root.
+	 * If the application is launched with -Dovermind.spikesSeed=N the root is seeded, so that
+	 * the spike trains of a single-threaded run can be reproduced.
+	 */
+
+	private static final SplittableRandom rootRandom = Long.getLong("overmind.spikesSeed") != null ?
+			new SplittableRandom(Long.getLong("overmind.spikesSeed")) : new SplittableRandom();
+
+	private static final ThreadLocal<SplittableRandom> threadRandom = new ThreadLocal<SplittableRandom>() {
+		@Override
+		protected SplittableRandom initialValue() {
+			synchronized (rootRandom) {
+				return rootRandom.split();
+			}
+		}
+	};
+
+	// The luminance is compared with random numbers of 16 bits, so that each draw serves 4 pixels.
+	private static final int THRESHOLD_ONE = 1 << 16;
+
+	// Threshold of each code of the luminance, so that the codes are never converted back to floats.
+	private static final int[] CODE_THRESHOLDS = new int[MuonTeacherConst.LUMINANCE_CODES];
+	static {
+		for (int code = 0; code < MuonTeacherConst.LUMINANCE_CODES; code++)
+			CODE_THRESHOLDS[code] = (int) (GrayscaleCandidate.luminanceOf(code) * THRESHOLD_ONE);
+	}
+
+	static int parseEncoding(String encodingName) {
+		switch (encodingName) {
+			case "rate":
+				return RATE_CODING;
+			case "latency":
+				return LATENCY_CODING;
+			case "rank":
+				return RANK_ORDER_CODING;
+			case "burst":
+				return BURST_CODING;
+			default:
+				System.out.println("ERROR: unknown spike encoding " + encodingName + ", using rate.");
+				return RATE_CODING;
+		}
+	}
 	
 	/**
-	 * Create a spike input from a map of pixel luminance
+	 * @return The length in ms of the presentation of an input with the given encoding. The rate coding 
+	 * needs many frames to average out the noise, while the other encodings are over once every pixel 
+	 * has spiked.
 	 */
 	
-	// TODO: Implement refractoriness?
+	static float stimulationLength(int encoding) {
+		switch (encoding) {
+			case LATENCY_CODING:
+				return MuonTeacherConst.LATENCY_WINDOW_FRAMES * MuonTeacherConst.DELTA_TIME;
+			case RANK_ORDER_CODING:
+				return (MuonTeacherConst.MAX_PIC_PIXELS + MuonTeacherConst.RANK_ORDER_PIXELS_PER_FRAME - 1) / 
+						MuonTeacherConst.RANK_ORDER_PIXELS_PER_FRAME * MuonTeacherConst.DELTA_TIME;
+			case BURST_CODING:
+				return MuonTeacherConst.MAX_BURST_SPIKES * MuonTeacherConst.DELTA_TIME;
+			default:
+				return MuonTeacherConst.STIMULATION_LENGTH;
+		}
+	}
 	
-	public  byte[] createFromLuminance(float[] grayscalePixels, boolean printValues) {
-		byte[] spikeInput;
-		short lengthInBytes; // How many bytes are needed to represent the spike input?
-		
-		// Each float is the luminance of a pixel and each pixel corresponds to a synapse
-		lengthInBytes = (short)(grayscalePixels.length % 8 == 0 ? grayscalePixels.length / 8 :
-			grayscalePixels.length / 8 + 1);
-		
-		/* 
-		 * The intesity of a pixel represents the probability for a given synapse to 
-		 * receive a spike. Hence, compare the intensity with a random number between 1 and 0 and,
-		 * if it's greater than it, set the bit corresponding to the synapse.
+	// TODO: Implement refractoriness?
+
+	/**
+	 * Write the spike input of a map of thresholds into a little endian buffer, starting from its
+	 * position. The bit of pixel i is bit i % 8 of byte i / 8.
+	 */
+
+	public void encodeFromThresholds(int[] thresholds, ByteBuffer frameBuffer) {
+		SplittableRandom random = threadRandom.get();
+		int numOfPixels = thresholds.length;
+
+		/*
+		 * The intesity of a pixel represents the probability for a given synapse to
+		 * receive a spike. Hence, for each pixel draw a random number between 0 and 1 and,
+		 * if the intensity is greater than it, set the bit corresponding to the synapse.
+		 * The bit is the sign of the difference between the random number and the threshold,
+		 * and the bits of 64 pixels are gathered in a word before being written.
 		 */
-		
-		spikeInput = new byte[lengthInBytes];
-		double randomLuminance = Math.random(); // Store a random number between 0 and 1				
-				
-		int index = 0; 
-		
-		// Iterate over all pixels of the image
-		for (float luminance : grayscalePixels) {
-			int byteIndex = index / 8;
-			
-			/*
-			if (printValues & Main.isTraining)
-				System.out.println("" + luminance);
-			*/
-			
-			// Cut-off luminance to prevent neurons from firing continuously. 
-			//luminance *= MAX_LUMINANCE / 100.0f;
-			
-			// Set the bit corresponding to the current pixel or synapse
-			if (randomLuminance < luminance) {		
-				spikeInput[byteIndex] |= (1 << index - byteIndex * 8);
-				/*
-				if (waitARP[index] == 0) { // A spike can be emitted only after the absolute refractory period has elapsed.
-					spikeInput[byteIndex] |= (1 << index - byteIndex * 8);
-        			waitARP[index] = (int) (Constants.ABSOLUTE_REFRACTORY_PERIOD / Constants.SAMPLING_RATE);  
-				} else if (waitARP[index] > 0) {
-					waitARP[index]--;
-					spikeInput[byteIndex] &= ~(1 << index - byteIndex * 8);
-				} else {
-					spikeInput[byteIndex] &= ~(1 << index - byteIndex * 8);
-				}		
-				*/				
+
+		for (int firstPixel = 0; firstPixel < numOfPixels; firstPixel += 64) {
+			int pixelsInWord = Math.min(64, numOfPixels - firstPixel);
+			long word = 0;
+
+			int bit = 0;
+			for (; bit + 3 < pixelsInWord; bit += 4) {
+				long randomBits = random.nextLong();
+				int pixel = firstPixel + bit;
+				word |= (long) ((((int) randomBits & 0xFFFF) - thresholds[pixel]) >>> 31) << bit;
+				word |= (long) ((((int) (randomBits >>> 16) & 0xFFFF) - thresholds[pixel + 1]) >>> 31) << (bit + 1);
+				word |= (long) ((((int) (randomBits >>> 32) & 0xFFFF) - thresholds[pixel + 2]) >>> 31) << (bit + 2);
+				word |= (long) ((((int) (randomBits >>> 48)) - thresholds[pixel + 3]) >>> 31) << (bit + 3);
+			}
+			for (; bit < pixelsInWord; bit++)
+				word |= (long) ((random.nextInt(THRESHOLD_ONE) - thresholds[firstPixel + bit]) >>> 31) << bit;
+
+			if (pixelsInWord == 64) {
+				frameBuffer.putLong(word);
+			} else {
+				// Write only the bytes that contain pixels.
+				for (int byteIndex = 0; byteIndex < (pixelsInWord + 7) / 8; byteIndex++)
+					frameBuffer.put((byte) (word >>> byteIndex * 8));
 			}
-			
-			index++;			
-		}		
-		
-		return spikeInput;
+		}
+	}
+
+	/**
+	 * Convert the luminance codes of all the pixels of a candidate into thresholds.
+	 */
+
+	static int[] thresholdsOf(GrayscaleCandidate candidate) {
+		int[] thresholds = new int[candidate.numOfPixels];
+		for (int litIndex = 0; litIndex < candidate.litPixels.length; litIndex++)
+			thresholds[candidate.litPixels[litIndex]] = CODE_THRESHOLDS[candidate.litCodes[litIndex]];
+		return thresholds;
+	}
+
+	/**
+	 * Convert the luminance codes of the lit pixels of a candidate into thresholds.
+	 */
+
+	static int[] litThresholdsOf(GrayscaleCandidate candidate) {
+		int[] litThresholds = new int[candidate.litCodes.length];
+		for (int litIndex = 0; litIndex < litThresholds.length; litIndex++)
+			litThresholds[litIndex] = CODE_THRESHOLDS[candidate.litCodes[litIndex]];
+		return litThresholds;
+	}
+
+	/**
+	 * Write the spike input of a sparse map of thresholds into the frame which starts at frameOffset.
+	 * Only the lit pixels are visited, so the cost is proportional to the size of the trace.
+	 */
+
+	public void encodeFromSparse(short[] litPixels, int[] litThresholds, ByteBuffer frames, int frameOffset, int frameBytes) {
+		SplittableRandom random = threadRandom.get();
+
+		for (int byteIndex = frameOffset; byteIndex < frameOffset + frameBytes; byteIndex++)
+			frames.put(byteIndex, (byte) 0);
+
+		// Each 64 bits draw serves 4 pixels, as in encodeFromThresholds.
+		long randomBits = 0;
+		for (int litIndex = 0; litIndex < litPixels.length; litIndex++) {
+			if ((litIndex & 3) == 0)
+				randomBits = random.nextLong();
+			int randomNumber = (int) (randomBits >>> ((litIndex & 3) * 16)) & 0xFFFF;
+
+			if (randomNumber < litThresholds[litIndex])
+				setSpike(frames, frameOffset, litPixels[litIndex]);
+		}
+	}
+
+	/**
+	 * Write a whole spike train of a candidate into a little endian buffer, one frame of frameBytes
+	 * bytes after the other starting from position 0.
+	 */
+
+	public void encodeTrain(GrayscaleCandidate candidate, ByteBuffer frames, int frameBytes, int numOfFrames, int encoding) {
+		int[] litThresholds = litThresholdsOf(candidate);
+
+		if (encoding == RATE_CODING) {
+			// If many pixels are lit, visiting all of them word at a time is faster.
+			if (candidate.litPixels.length * MuonTeacherConst.SPARSE_ENCODING_RATIO > candidate.numOfPixels) {
+				int[] thresholds = thresholdsOf(candidate);
+				for (int frameIndex = 0; frameIndex < numOfFrames; frameIndex++) {
+					frames.position(frameIndex * frameBytes);
+					encodeFromThresholds(thresholds, frames);
+				}
+			} else {
+				for (int frameIndex = 0; frameIndex < numOfFrames; frameIndex++)
+					encodeFromSparse(candidate.litPixels, litThresholds, frames, frameIndex * frameBytes, frameBytes);
+			}
+			return;
+		}
+
+		// The temporal encodings set a few bits of a train which is blank otherwise.
+		for (int byteIndex = 0; byteIndex < numOfFrames * frameBytes; byteIndex++)
+			frames.put(byteIndex, (byte) 0);
+
+		switch (encoding) {
+			case LATENCY_CODING:
+				encodeLatency(candidate.litPixels, litThresholds, frames, frameBytes, numOfFrames);
+				break;
+			case RANK_ORDER_CODING:
+				encodeRankOrder(candidate.litPixels, litThresholds, frames, frameBytes, numOfFrames);
+				break;
+			case BURST_CODING:
+				encodeBurst(candidate.litPixels, litThresholds, frames, frameBytes, numOfFrames);
+				break;
+		}
+	}
+
+	private static void setSpike(ByteBuffer frames, int frameOffset, int pixel) {
+		int byteIndex = frameOffset + pixel / 8;
+		frames.put(byteIndex, (byte) (frames.get(byteIndex) | (1 << pixel % 8)));
+	}
+
+	/*
+	 * A pixel of luminance L spikes at frame (1 - L) * (LATENCY_WINDOW_FRAMES - 1), hence the
+	 * brightest pixels spike in the first frame. Pixels with no luminance never spike.
+	 */
+
+	private static void encodeLatency(short[] litPixels, int[] litThresholds, ByteBuffer frames, int frameBytes, int numOfFrames) {
+		final int lastFrame = MuonTeacherConst.LATENCY_WINDOW_FRAMES - 1;
+		for (int litIndex = 0; litIndex < litPixels.length; litIndex++) {
+			if (litThresholds[litIndex] == 0)
+				continue;
+			int frameIndex = ((THRESHOLD_ONE - litThresholds[litIndex]) * lastFrame + THRESHOLD_ONE / 2) / THRESHOLD_ONE;
+			if (frameIndex < numOfFrames)
+				setSpike(frames, frameIndex * frameBytes, litPixels[litIndex]);
+		}
+	}
+
+	/*
+	 * The pixels are sorted by decreasing luminance, the ties in order of index, and spike
+	 * RANK_ORDER_PIXELS_PER_FRAME at a time. Only the order of the spikes carries information.
+	 */
+
+	private static void encodeRankOrder(short[] litPixels, int[] litThresholds, ByteBuffer frames, int frameBytes, int numOfFrames) {
+		// Pack the luminance and the index of each pixel in a single key, so that a plain sort ranks them.
+		long[] rankKeys = new long[litPixels.length];
+		int numOfRankedPixels = 0;
+		for (int litIndex = 0; litIndex < litPixels.length; litIndex++) {
+			if (litThresholds[litIndex] != 0)
+				rankKeys[numOfRankedPixels++] = (long) (THRESHOLD_ONE - litThresholds[litIndex]) << 32 | litPixels[litIndex];
+		}
+		Arrays.sort(rankKeys, 0, numOfRankedPixels);
+
+		for (int rank = 0; rank < numOfRankedPixels; rank++) {
+			int frameIndex = rank / MuonTeacherConst.RANK_ORDER_PIXELS_PER_FRAME;
+			if (frameIndex >= numOfFrames)
+				break;
+			setSpike(frames, frameIndex * frameBytes, (int) rankKeys[rank]);
+		}
+	}
+
+	/*
+	 * A pixel of luminance L spikes in each of the first L * MAX_BURST_SPIKES frames.
+	 */
+
+	private static void encodeBurst(short[] litPixels, int[] litThresholds, ByteBuffer frames, int frameBytes, int numOfFrames) {
+		for (int litIndex = 0; litIndex < litPixels.length; litIndex++) {
+			int burstLength = (litThresholds[litIndex] * MuonTeacherConst.MAX_BURST_SPIKES + THRESHOLD_ONE / 2) / THRESHOLD_ONE;
+			for (int frameIndex = 0; frameIndex < Math.min(burstLength, numOfFrames); frameIndex++)
+				setSpike(frames, frameIndex * frameBytes, litPixels[litIndex]);
+		}
 	}
 }
@@ -0,0 +1,249 @@
+package overmind_app;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of the spike trains of the inputs which are about to be presented to the network. The
+ * frames of a presentation are encoded in the background into a single packed buffer, while the
+ * previous presentation is still being sent, so that the scheduler only has to put ready-made
+ * frames on the wire. The buffers of the trains are recycled once the presentation is over.
+ *
+ * Apart from release, the methods must be called always by the same thread.
+ * @author rodolfo
+ *
+ */
+
+public class SpikeTrainCache {
+
+	// Frames with no spikes, one for each frame size, shared by all the blank inputs and by the pauses.
+	private static final ConcurrentHashMap<Integer, ByteBuffer> blankFrames = new ConcurrentHashMap<>();
+
+	/**
+	 * The frames of a presentation, one after the other in the same buffer.
+	 */
+
+	static class SpikeTrain {
+		final ByteBuffer frames;
+		final int frameBytes;
+		final int numOfFrames;
+		final boolean isBlank; // If true all the frames are the blank frame of frameBytes bytes.
+		
+		// Number of presentations using the train. The buffer is recycled when it drops to 0.
+		private final AtomicInteger holders = new AtomicInteger(1);
+
+		SpikeTrain(ByteBuffer frames, int frameBytes, int numOfFrames, boolean isBlank) {
+			this.frames = frames;
+			this.frameBytes = frameBytes;
+			this.numOfFrames = numOfFrames;
+			this.isBlank = isBlank;
+		}
+
+		int offsetOf(int frameIndex) {
+			return isBlank ? 0 : frameIndex * frameBytes;
+		}
+	}
+
+	private final SpikeInputCreator spikeInputCreator = new SpikeInputCreator();
+	
+	// Encoding of all the trains of the cache.
+	private final int encoding;
+
+	/**
+	 * Train encoded in the background. If it's discarded before it's been encoded, the buffer is
+	 * released by the encoder as soon as it's done, since nobody will take the train.
+	 */
+
+	private class PrefetchTask implements Callable<SpikeTrain> {
+		private final GrayscaleCandidate input;
+		private final int numOfFrames;
+		private Future<SpikeTrain> future;
+
+		// Guarded by the task.
+		private SpikeTrain encodedTrain = null;
+		private boolean discarded = false;
+
+		PrefetchTask(GrayscaleCandidate input, int numOfFrames) {
+			this.input = input;
+			this.numOfFrames = numOfFrames;
+		}
+
+		@Override
+		public SpikeTrain call() {
+			SpikeTrain spikeTrain = encode(input, numOfFrames);
+			synchronized (this) {
+				if (!discarded) {
+					encodedTrain = spikeTrain;
+					return spikeTrain;
+				}
+			}
+			release(spikeTrain);
+			return null;
+		}
+
+		void discard() {
+			SpikeTrain spikeTrain;
+			synchronized (this) {
+				discarded = true;
+				spikeTrain = encodedTrain;
+			}
+
+			// If the train has already been encoded its buffer can be reused, otherwise the encoding is stopped.
+			if (spikeTrain != null)
+				release(spikeTrain);
+			else
+				future.cancel(false);
+		}
+	}
+
+	// Trains being encoded in the background, in the order in which they have been requested.
+	private final IdentityHashMap<GrayscaleCandidate, ArrayDeque<PrefetchTask>> prefetchedTrains = new IdentityHashMap<>();
+
+	// Buffers of the trains whose presentation is over.
+	private final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<>();
+
+	private final ExecutorService encoderService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread encoderThread = new Thread(runnable, "SpikeTrainEncoder");
+			encoderThread.setDaemon(true);
+			return encoderThread;
+		}
+	});
+
+	SpikeTrainCache(int encoding) {
+		this.encoding = encoding;
+	}
+
+	/**
+	 * Get the train of a presentation of the input. If it hasn't been prefetched, it's encoded
+	 * by the calling thread.
+	 */
+
+	SpikeTrain take(GrayscaleCandidate input, int numOfFrames) {
+		ArrayDeque<PrefetchTask> trainsQueue = prefetchedTrains.get(input);
+		PrefetchTask prefetchedTrain = trainsQueue != null ? trainsQueue.poll() : null;
+
+		if (prefetchedTrain != null) {
+			try {
+				SpikeTrain spikeTrain = prefetchedTrain.future.get();
+				if (spikeTrain.numOfFrames == numOfFrames)
+					return spikeTrain;
+				release(spikeTrain);
+			} catch (InterruptedException | ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+
+		return encode(input, numOfFrames);
+	}
+
+	/**
+	 * Start encoding in the background a train of the input, which will be returned by the next take.
+	 */
+
+	void prefetch(final GrayscaleCandidate input, final int numOfFrames) {
+		ArrayDeque<PrefetchTask> trainsQueue = prefetchedTrains.get(input);
+		if (trainsQueue == null) {
+			trainsQueue = new ArrayDeque<>();
+			prefetchedTrains.put(input, trainsQueue);
+		}
+
+		PrefetchTask prefetchTask = new PrefetchTask(input, numOfFrames);
+		prefetchTask.future = encoderService.submit(prefetchTask);
+		trainsQueue.add(prefetchTask);
+	}
+
+	/**
+	 * Discard the prefetched trains of all the inputs but the given ones.
+	 */
+
+	void retainOnly(Set<GrayscaleCandidate> inputs) {
+		Iterator<Map.Entry<GrayscaleCandidate, ArrayDeque<PrefetchTask>>> iterator =
+				prefetchedTrains.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<GrayscaleCandidate, ArrayDeque<PrefetchTask>> entry = iterator.next();
+			if (inputs.contains(entry.getKey()))
+				continue;
+
+			for (PrefetchTask prefetchedTrain : entry.getValue())
+				prefetchedTrain.discard();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Let one more presentation use the train, for example to send it to several layers.
+	 * Each presentation must release the train once it's over.
+	 */
+
+	SpikeTrain share(SpikeTrain spikeTrain) {
+		spikeTrain.holders.incrementAndGet();
+		return spikeTrain;
+	}
+
+	/**
+	 * Give back the buffer of a train whose presentation is over. Can be called by any thread.
+	 */
+
+	void release(SpikeTrain spikeTrain) {
+		if (spikeTrain.holders.decrementAndGet() == 0 && !spikeTrain.isBlank)
+			freeBuffers.offer(spikeTrain.frames);
+	}
+
+	void close() {
+		for (ArrayDeque<PrefetchTask> trainsQueue : prefetchedTrains.values()) {
+			for (PrefetchTask prefetchedTrain : trainsQueue)
+				prefetchedTrain.discard();
+		}
+		prefetchedTrains.clear();
+		encoderService.shutdownNow();
+		freeBuffers.clear();
+	}
+
+	/**
+	 * @return A read-only frame with no spikes of the given size. Must only be read through duplicates.
+	 */
+
+	static ByteBuffer blankFrame(int frameBytes) {
+		ByteBuffer blankFrame = blankFrames.get(frameBytes);
+		if (blankFrame == null) {
+			ByteBuffer newBlankFrame = ByteBuffer.allocateDirect(frameBytes).asReadOnlyBuffer();
+			blankFrame = blankFrames.putIfAbsent(frameBytes, newBlankFrame);
+			if (blankFrame == null)
+				blankFrame = newBlankFrame;
+		}
+		return blankFrame;
+	}
+
+	private SpikeTrain encode(GrayscaleCandidate input, int numOfFrames) {
+		int frameBytes = (input.numOfPixels + 7) / 8;
+
+		// An input with no luminance can't produce any spike.
+		if (input.litPixels.length == 0)
+			return new SpikeTrain(blankFrame(frameBytes), frameBytes, numOfFrames, true);
+
+		ByteBuffer frames = freeBuffers.poll();
+		if (frames == null || frames.capacity() < frameBytes * numOfFrames)
+			frames = ByteBuffer.allocateDirect(frameBytes * numOfFrames).order(ByteOrder.LITTLE_ENDIAN);
+
+		spikeInputCreator.encodeTrain(input, frames, frameBytes, numOfFrames, encoding);
+		frames.clear();
+
+		return new SpikeTrain(frames, frameBytes, numOfFrames, false);
+	}
+
+}
@@ -0,0 +1,41 @@
+package overmind_app;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed-size pool of direct byte buffers used to receive the spikes packets. The buffers
+ * are allocated once when the pool is created and recycled afterwards, so that
+ * the receive loop doesn't produce any garbage. The buffers are little endian, so that
+ * the spikes can be read 64 bits at a time in the same order in which they are packed. 
+ * @author rodolfo
+ *
+ */
+
+public class SpikesBufferPool {
+	private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+	
+	SpikesBufferPool(int numOfBuffers, int bufferSize) {
+		freeBuffers = new ArrayBlockingQueue<>(numOfBuffers);
+		for (int i = 0; i < numOfBuffers; i++) 
+			freeBuffers.offer(ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN));
+	}
+	
+	/**
+	 * Take a buffer from the pool without blocking.
+	 * @return A cleared buffer, or null if all the buffers are in use. 
+	 */
+	
+	ByteBuffer acquire() {
+		return freeBuffers.poll();
+	}
+	
+	/**
+	 * Give back to the pool a buffer previously obtained with acquire().
+	 */
+	
+	void release(ByteBuffer buffer) {
+		buffer.clear();
+		freeBuffers.offer(buffer);
+	}
+}
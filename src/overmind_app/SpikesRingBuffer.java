@@ -0,0 +1,101 @@
+package overmind_app;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of the buffers holding the spikes frames. Any number of threads can offer frames, but only one 
+ * thread can consume them. Each slot carries a sequence number which tells whether it 
+ * can be written by a producer or read by the consumer, so that neither side 
+ * ever needs to wait for the other. 
+ * @author rodolfo
+ *
+ */
+
+public class SpikesRingBuffer {
+	private final int capacity, mask;
+	private final AtomicLongArray sequences;
+	private final ByteBuffer[] buffers;
+	
+	private final AtomicLong tail = new AtomicLong(0); // Next position to be claimed by a producer.
+	private long head = 0; // Next position to be read. Accessed only by the consumer. 
+	
+	SpikesRingBuffer(int capacity) {
+		if (Integer.bitCount(capacity) != 1)
+			throw new IllegalArgumentException("Capacity of the ring buffer must be a power of 2");
+		
+		this.capacity = capacity;
+		mask = capacity - 1;
+		sequences = new AtomicLongArray(capacity);
+		buffers = new ByteBuffer[capacity];
+		
+		for (int i = 0; i < capacity; i++) 
+			sequences.set(i, i);
+	}
+	
+	/**
+	 * Put a new frame at the end of the queue. Never blocks. 
+	 * @return false if the queue is full and the frame could not be stored.
+	 */
+	
+	boolean offer(ByteBuffer spikesBuffer) {
+		long position = tail.get();
+		int index;
+		
+		while (true) {
+			index = (int) position & mask;
+			long difference = sequences.get(index) - position;
+			
+			if (difference == 0) { // The slot is free, try to claim it.
+				if (tail.compareAndSet(position, position + 1))
+					break;
+				position = tail.get();
+			} else if (difference < 0) { // The slot still holds a frame which hasn't been consumed.
+				return false;
+			} else { // Another producer claimed the slot in the meantime.
+				position = tail.get();
+			}
+		}
+		
+		buffers[index] = spikesBuffer;
+		sequences.lazySet(index, position + 1); // Publish the frame to the consumer.
+		
+		return true;
+	}
+	
+	/*
+	 * The following methods must be called by the consumer thread only. 
+	 */
+	
+	/**
+	 * @return The position of the oldest frame that can be read, or -1 if the queue is empty.
+	 */
+	
+	long readablePosition() {
+		return sequences.get((int) head & mask) == head + 1 ? head : -1;
+	}
+	
+	ByteBuffer bufferAt(long position) {
+		return buffers[(int) position & mask];
+	}
+	
+	/**
+	 * @return The number of frames waiting to be consumed, including those which are still being 
+	 * written by the producers.
+	 */
+	
+	int backlog() {
+		return (int) (tail.get() - head);
+	}
+	
+	/**
+	 * Free the slot at the given position so that producers can reuse it.
+	 */
+	
+	void consumed(long position) {
+		int index = (int) position & mask;
+		buffers[index] = null;
+		head = position + 1;
+		sequences.lazySet(index, position + capacity);
+	}
+}
@@ -0,0 +1,176 @@
+package overmind_app;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import overmind_server.*;
+
+/**
+ * Table that resolves the address of the terminal which sent a spikes packet directly
+ * into a dense slot index. Each slot stores the number of neurons of the node and owns 
+ * a row of the firing rates matrix, so that the receiving path doesn't need to build 
+ * strings or look up the server's hash maps. 
+ * 
+ * The slots are assigned when the table is created, following the order of the 
+ * excitatory nodes. When the topology changes the addresses are resolved again and a 
+ * node which has joined, such as the shadow node which replaces a removed one, takes 
+ * the slot of a removed node with the same number of neurons. The slot of a node which 
+ * stays in the network never changes during an analysis. 
+ * @author rodolfo
+ *
+ */
+
+public class SpikesRoutingTable {
+	static final int NO_SLOT = -1;
+	
+	// Key of the addresses which can't be packed.
+	private static final long NO_ADDRESS = -1;
+	
+	final int[] numOfNeurons;
+	final FiringRateMatrix firingRates;
+	
+	// Node of each slot and addresses index, replaced as a whole when the topology changes.
+	private volatile Node[] slotNodes;
+	private volatile AddressIndex addressIndex;
+	
+	SpikesRoutingTable(ArrayList<Node> excNodes) {
+		Node[] initialNodes = excNodes.toArray(new Node[excNodes.size()]);
+		numOfNeurons = new int[initialNodes.length];
+		for (int slot = 0; slot < initialNodes.length; slot++)
+			numOfNeurons[slot] = initialNodes[slot].terminal.numOfNeurons;
+		
+		firingRates = new FiringRateMatrix(numOfNeurons);
+		slotNodes = initialNodes;
+		rebuild(excNodes);
+	}
+	
+	int numOfSlots() {
+		return numOfNeurons.length;
+	}
+	
+	/**
+	 * @return The node which currently owns the slot.
+	 */
+	
+	Node nodeOf(int slot) {
+		return slotNodes[slot];
+	}
+	
+	/**
+	 * Resolve again the addresses of the nodes of the table which are still part 
+	 * of the given collection. Nodes that have been removed are no longer reachable, 
+	 * unless a new node of the collection takes their slot. 
+	 */
+	
+	void rebuild(ArrayList<Node> excNodes) {
+		// The table is read by the lanes while it's rebuilt, hence the new one is published only once it's complete.
+		Node[] newSlotNodes = slotNodes.clone();
+		
+		/* Give the slots of the removed nodes to the nodes which have joined */
+		
+		for (Node node : excNodes) {
+			if (Arrays.asList(newSlotNodes).contains(node))
+				continue;
+			
+			int freeSlot = NO_SLOT;
+			for (int slot = 0; slot < newSlotNodes.length && freeSlot == NO_SLOT; slot++) {
+				if (!excNodes.contains(newSlotNodes[slot]) && numOfNeurons[slot] == node.terminal.numOfNeurons)
+					freeSlot = slot;
+			}
+			
+			if (freeSlot == NO_SLOT) {
+				System.out.println("ERROR: no slot with " + node.terminal.numOfNeurons + " neurons for node " + node.terminal.ip);
+				continue;
+			}
+			newSlotNodes[freeSlot] = node;
+		}
+		
+		AddressIndex newAddressIndex = new AddressIndex(newSlotNodes.length);
+		
+		for (int slot = 0; slot < newSlotNodes.length; slot++) {
+			Node node = newSlotNodes[slot];
+			if (!excNodes.contains(node))
+				continue;
+			
+			try {
+				long address = packAddress(InetAddress.getByName(node.terminal.ip), node.terminal.natPort);
+				if (address == NO_ADDRESS)
+					System.out.println("ERROR: address of node " + node.terminal.ip + " is not IPv4");
+				else
+					newAddressIndex.put(address, slot);
+			} catch (UnknownHostException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		slotNodes = newSlotNodes;
+		addressIndex = newAddressIndex;
+	}
+	
+	/**
+	 * @return The slot of the node which owns the given address, or NO_SLOT if the address is unknown.
+	 */
+	
+	int slotOf(InetSocketAddress senderAddress) {
+		return addressIndex.get(packAddress(senderAddress.getAddress(), senderAddress.getPort()));
+	}
+	
+	/**
+	 * Pack ip and port into a single long. The terminals are only reached through IPv4, 
+	 * whose 32 bits address fits in the key together with the port. 
+	 * @return The packed address, or NO_ADDRESS if the address is not IPv4.
+	 */
+	
+	private static long packAddress(InetAddress inetAddress, int port) {
+		if (!(inetAddress instanceof Inet4Address))
+			return NO_ADDRESS;
+		
+		long address = 0;
+		for (byte addressByte : inetAddress.getAddress())
+			address = (address << 8) | (addressByte & 0xff);
+		return (address << 16) | (port & 0xffff);
+	}
+	
+	/**
+	 * Open addressing hash table from packed addresses to slots. 
+	 */
+	
+	private static class AddressIndex {
+		private final long[] keys;
+		private final int[] slots;
+		private final int mask;
+		
+		AddressIndex(int numOfEntries) {
+			int capacity = Integer.highestOneBit(Math.max(numOfEntries, 4) * 2 - 1) << 1; // Keep the load factor below 0.5
+			keys = new long[capacity];
+			slots = new int[capacity];
+			mask = capacity - 1;
+			Arrays.fill(slots, NO_SLOT);
+		}
+		
+		private static int hash(long key) {
+			key *= 0x9E3779B97F4A7C15L;
+			return (int) (key ^ (key >>> 32));
+		}
+		
+		void put(long key, int slot) {
+			int index = hash(key) & mask;
+			while (slots[index] != NO_SLOT && keys[index] != key)
+				index = (index + 1) & mask;
+			keys[index] = key;
+			slots[index] = slot;
+		}
+		
+		int get(long key) {
+			int index = hash(key) & mask;
+			while (slots[index] != NO_SLOT) {
+				if (keys[index] == key)
+					return slots[index];
+				index = (index + 1) & mask;
+			}
+			return NO_SLOT;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package overmind_app;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import overmind_server.Node;
+
+/**
+ * Sends the spikes frames to all the input layers through a single non-blocking channel.
+ * The frames due in a tick are queued by the stimulation jobs and sent together when the
+ * tick is over, so that the layers receive them as close in time as possible. The endpoints
+ * of the layers are resolved only once and no object is allocated when sending.
+ * @author rodolfo
+ *
+ */
+
+public class SpikesSender {
+	private final DatagramChannel channel;
+
+	// Address and nat port of the terminal of each node, indexed by the id of the node.
+	private final ConcurrentHashMap<Integer, InetSocketAddress> endpoints = new ConcurrentHashMap<>();
+
+	/* Frames queued during the current tick. Accessed only by the scheduler thread */
+
+	private ByteBuffer[] batchFrames = new ByteBuffer[16];
+	private InetSocketAddress[] batchEndpoints = new InetSocketAddress[16];
+	private int batchSize = 0;
+
+	private volatile long sentFrames = 0, droppedFrames = 0;
+
+	SpikesSender() throws IOException {
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.IP_TOS, MuonTeacherConst.IPTOS_THROUGHPUT);
+	}
+
+	/**
+	 * @return The endpoint of the terminal of the node, or null if its address can't be resolved.
+	 */
+
+	InetSocketAddress endpointOf(Node node) {
+		InetSocketAddress endpoint = endpoints.get(node.id);
+
+		// Resolve the address again only if the terminal has changed.
+		if (endpoint == null || endpoint.getPort() != node.terminal.natPort ||
+				!endpoint.getHostString().equals(node.terminal.ip)) {
+			endpoint = new InetSocketAddress(node.terminal.ip, node.terminal.natPort);
+			if (endpoint.isUnresolved()) {
+				System.out.println("ERROR: could not resolve the address of node " + node.terminal.ip);
+				return null;
+			}
+			endpoints.put(node.id, endpoint);
+		}
+
+		return endpoint;
+	}
+
+	/**
+	 * Queue a frame to be sent at the end of the tick. The buffer must not be modified until then.
+	 */
+
+	void queue(ByteBuffer frame, InetSocketAddress endpoint) {
+		if (batchSize == batchFrames.length) {
+			batchFrames = Arrays.copyOf(batchFrames, batchSize * 2);
+			batchEndpoints = Arrays.copyOf(batchEndpoints, batchSize * 2);
+		}
+
+		batchFrames[batchSize] = frame;
+		batchEndpoints[batchSize] = endpoint;
+		batchSize++;
+	}
+
+	/**
+	 * Send all the queued frames. A frame which doesn't fit in the send buffer of the socket
+	 * is dropped rather than delaying the others.
+	 */
+
+	void flush() {
+		long sent = 0, dropped = 0;
+
+		for (int index = 0; index < batchSize; index++) {
+			ByteBuffer frame = batchFrames[index];
+			try {
+				if (channel.send(frame, batchEndpoints[index]) != 0)
+					sent++;
+				else
+					dropped++;
+			} catch (IOException e) {
+				dropped++;
+				e.printStackTrace();
+			}
+
+			batchFrames[index] = null;
+			batchEndpoints[index] = null;
+		}
+
+		batchSize = 0;
+		sentFrames += sent;
+		droppedFrames += dropped;
+	}
+
+	void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		endpoints.clear();
+
+		if (droppedFrames != 0)
+			System.out.println("SpikesSender: " + droppedFrames + " of " + (sentFrames + droppedFrames) + " frames were dropped");
+	}
+}
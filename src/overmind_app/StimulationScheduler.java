@@ -0,0 +1,221 @@
+package overmind_app;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread that emits the frames of all the stimulations at a fixed period. The ticks follow
+ * an absolute schedule, so that the time spent sending the frames doesn't accumulate as drift.
+ * The thread parks until shortly before each tick and spins only for the last few microseconds,
+ * hence a single core is not burned for each input layer.
+ * @author rodolfo
+ *
+ */
+
+public class StimulationScheduler extends Thread {
+
+	/**
+	 * A stimulation made of a fixed number of frames. The future is completed one period
+	 * after the last frame has been emitted.
+	 */
+
+	static abstract class Job {
+		final int numOfFrames;
+		private int nextFrame = 0;
+		final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+		Job(int numOfFrames) {
+			this.numOfFrames = numOfFrames;
+		}
+
+		/**
+		 * Emit the frame with the given index. Called only by the scheduler thread.
+		 */
+
+		abstract void emitFrame(int frameIndex);
+		
+		/**
+		 * Called by the scheduler thread once the job is over, whether it has been completed or not.
+		 */
+		
+		void completed() {}
+	}
+
+	volatile boolean shutdown = false;
+	private final long periodNanos;
+	
+	// Task run once the frames of a tick have been emitted, for example to send them all together.
+	private final Runnable tickCompleted;
+
+	// Groups of jobs waiting to be started. The jobs of a group start on the same tick.
+	private final ConcurrentLinkedQueue<Job[]> pendingJobs = new ConcurrentLinkedQueue<>();
+
+	// Jobs being emitted. Accessed only by the scheduler thread.
+	private final ArrayList<Job> activeJobs = new ArrayList<>();
+
+	/* Jitter statistics, written only by the scheduler thread */
+
+	private volatile long ticks = 0, intervals = 0, missedTicks = 0;
+	private volatile long maxLateness = 0, maxJitter = 0; // Nanoseconds.
+	private volatile double sumOfJitters = 0, sumOfSquaredJitters = 0; // Deviations of the intervals from the period, in ns.
+
+	StimulationScheduler(float periodMills, Runnable tickCompleted) {
+		super("StimulationScheduler");
+		periodNanos = (long) (periodMills * MuonTeacherConst.MILLS_TO_NANO_FACTOR);
+		this.tickCompleted = tickCompleted;
+	}
+
+	long getPeriodNanos() {
+		return periodNanos;
+	}
+
+	/**
+	 * Schedule a group of jobs to be started together on the next tick.
+	 */
+
+	void submit(Job[] jobs) {
+		pendingJobs.offer(jobs);
+		LockSupport.unpark(this);
+	}
+
+	@Override
+	public void run() {
+		long nextTick = 0, lastTick = 0;
+		boolean scheduleStarted = false;
+
+		while (!shutdown) {
+			// Move the new jobs among the active ones.
+			Job[] jobs;
+			while ((jobs = pendingJobs.poll()) != null) {
+				for (Job job : jobs)
+					activeJobs.add(job);
+			}
+
+			// If there is nothing to emit wait for a new submission. The schedule restarts from scratch
+			// afterwards, hence the interval spent idling doesn't count as jitter.
+			if (activeJobs.isEmpty()) {
+				LockSupport.parkNanos(this, periodNanos);
+				scheduleStarted = false;
+				continue;
+			}
+
+			if (!scheduleStarted) {
+				nextTick = System.nanoTime();
+				lastTick = 0;
+				scheduleStarted = true;
+			}
+
+			waitUntil(nextTick);
+			long tickTime = System.nanoTime();
+			updateStatistics(tickTime, nextTick, lastTick);
+			lastTick = tickTime;
+
+			emitFrames();
+			if (tickCompleted != null)
+				tickCompleted.run();
+
+			// Advance the schedule. If the thread has fallen behind by more than a whole period,
+			// the lost ticks are skipped rather than emitted back to back.
+			nextTick += periodNanos;
+			long now = System.nanoTime();
+			if (now - nextTick > periodNanos) {
+				long lostTicks = (now - nextTick) / periodNanos;
+				missedTicks += lostTicks;
+				nextTick += lostTicks * periodNanos;
+			}
+		}
+
+		// Release whoever is waiting on the jobs that were never completed.
+		Job[] jobs;
+		while ((jobs = pendingJobs.poll()) != null) {
+			for (Job job : jobs)
+				activeJobs.add(job);
+		}
+		for (Job job : activeJobs) {
+			job.completion.cancel(false);
+			job.completed();
+		}
+		activeJobs.clear();
+
+		System.out.println(jitterReport());
+	}
+
+	/**
+	 * Emit the next frame of each active job, and complete the jobs which have emitted all of them.
+	 */
+
+	private void emitFrames() {
+		Iterator<Job> iterator = activeJobs.iterator();
+		while (iterator.hasNext()) {
+			Job job = iterator.next();
+
+			if (job.nextFrame == job.numOfFrames) {
+				iterator.remove();
+				job.completion.complete(null);
+				job.completed();
+				continue;
+			}
+
+			try {
+				job.emitFrame(job.nextFrame++);
+			} catch (RuntimeException e) {
+				iterator.remove();
+				job.completion.completeExceptionally(e);
+				job.completed();
+			}
+		}
+	}
+
+	/**
+	 * Park the thread until shortly before the deadline, then spin for the remaining time.
+	 */
+
+	private void waitUntil(long deadline) {
+		long remainingTime;
+		while ((remainingTime = deadline - System.nanoTime()) > MuonTeacherConst.SCHEDULER_SPIN_NANOS)
+			LockSupport.parkNanos(this, remainingTime - MuonTeacherConst.SCHEDULER_SPIN_NANOS);
+
+		while (deadline - System.nanoTime() > 0) {
+			// Spin for the last few microseconds, which parking can't resolve.
+		}
+	}
+
+	private void updateStatistics(long tickTime, long scheduledTime, long lastTick) {
+		ticks++;
+
+		long lateness = tickTime - scheduledTime;
+		if (lateness > maxLateness)
+			maxLateness = lateness;
+
+		if (lastTick == 0)
+			return;
+
+		intervals++;
+		long jitter = Math.abs(tickTime - lastTick - periodNanos);
+		if (jitter > maxJitter)
+			maxJitter = jitter;
+		sumOfJitters += jitter;
+		sumOfSquaredJitters += (double) jitter * jitter;
+	}
+
+	/**
+	 * @return A description of how far the actual intervals between the frames were from the period.
+	 */
+
+	String jitterReport() {
+		long numOfTicks = ticks, numOfIntervals = intervals;
+		if (numOfIntervals == 0)
+			return "StimulationScheduler: " + numOfTicks + " ticks, no intervals measured";
+
+		double meanJitter = sumOfJitters / numOfIntervals;
+		double rmsJitter = Math.sqrt(sumOfSquaredJitters / numOfIntervals);
+		final double NANO_TO_MICRO = 1e-3;
+		return "StimulationScheduler: " + numOfTicks + " ticks, " + missedTicks + " missed, " +
+				"mean jitter " + (float) (meanJitter * NANO_TO_MICRO) + " us, " +
+				"rms jitter " + (float) (rmsJitter * NANO_TO_MICRO) + " us, " +
+				"max jitter " + (float) (maxJitter * NANO_TO_MICRO) + " us, " +
+				"max lateness " + (float) (maxLateness * NANO_TO_MICRO) + " us";
+	}
+}